@@ -0,0 +1,202 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package com.nuxeo.fontoxml;
+
+import static com.nuxeo.fontoxml.servlet.Constants.*;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+
+import com.nuxeo.fontoxml.servlet.Utilities;
+
+/**
+ * Calculates how Fonto sees a document (document, output-support, image, ...) and stores it in the
+ * <code>fontoxml</code> schema (<code>FontoXML</code> facet), so POST /browse can filter and return it with the query
+ * instead of calculating it for every document of every page.
+ * <br/>
+ * Called when a document is created or modified (see <code>FontoXMLClassificationListener</code>) and by the
+ * <code>fontoxmlClassify</code> bulk action for existing documents.
+ *
+ * @since 10.10
+ */
+public class FontoXMLClassifier {
+
+    public static final String FACET = "FontoXML";
+
+    public static final String SCHEMA = "fontoxml";
+
+    public static final String XPATH_KIND = "fonto:kind";
+
+    public static final String XPATH_DIMENSION = "fonto:dimension";
+
+    public static final String XPATH_DURATION = "fonto:duration";
+
+    private FontoXMLClassifier() {
+        // Static methods only
+    }
+
+    /**
+     * Adds the <code>FontoXML</code> facet if needed and updates the values of the schema. The document is not
+     * saved.
+     * 
+     * @param doc
+     * @return true if the document was modified
+     * @since 10.10
+     */
+    public static boolean classify(DocumentModel doc) {
+
+        if (doc.isFolder() || !doc.hasSchema("file")) {
+            return false;
+        }
+
+        boolean changed = false;
+        if (!doc.hasFacet(FACET)) {
+            doc.addFacet(FACET);
+            changed = true;
+        }
+
+        changed |= setIfChanged(doc, XPATH_KIND, computeKind(doc));
+        changed |= setIfChanged(doc, XPATH_DIMENSION, computeDimension(doc));
+        changed |= setIfChanged(doc, XPATH_DURATION, computeDuration(doc));
+
+        return changed;
+    }
+
+    /**
+     * Returns the kind of the document, as stored in <code>fonto:kind</code>: one of the Fonto asset types
+     * (document, output-support, file, image, video, audio), or unknown.
+     * 
+     * @param doc
+     * @return the kind
+     * @since 10.10
+     */
+    public static String computeKind(DocumentModel doc) {
+
+        Blob blob = (Blob) doc.getPropertyValue("file:content");
+        if (blob == null) {
+            return FONTO_TYPE_UNKNOWN;
+        }
+
+        return computeKind(doc.getType(), blob.getMimeType(), blob.getFilename());
+    }
+
+    /**
+     * Same as <code>computeKind(DocumentModel)</code>, when the document is not loaded (its values were fetched with a
+     * projection query), for a document that has a blob
+     * 
+     * @param primaryType
+     * @param mimeType the mime type of file:content
+     * @param fileName the file name of file:content
+     * @return the kind
+     * @since 10.10
+     */
+    public static String computeKind(String primaryType, String mimeType, String fileName) {
+
+        switch (primaryType) {
+        case "File":
+            if (Utilities.isOkForFontoGETDocument(mimeType, fileName)) {
+                return FONTO_TYPE_DOCUMENT;
+            }
+            if (Utilities.isOkForFontoPOSTBrowseOutputSupport(mimeType, fileName)) {
+                return FONTO_TYPE_OUTPUT_SUPPORT;
+            }
+            return FONTO_TYPE_FILE;
+
+        case "Picture":
+            return FONTO_TYPE_IMAGE;
+
+        case "Audio":
+            return FONTO_TYPE_AUDIO;
+
+        case "Video":
+            return FONTO_TYPE_VIDEO;
+
+        default:
+            return FONTO_TYPE_UNKNOWN;
+        }
+    }
+
+    /**
+     * Returns the Fonto type (the "type" of a browse item) for a kind. An output-support is a file for Fonto.
+     * 
+     * @param kind
+     * @return the Fonto type
+     * @since 10.10
+     */
+    public static String toFontoType(String kind) {
+
+        if (kind == null) {
+            return FONTO_TYPE_UNKNOWN;
+        }
+        return FONTO_TYPE_OUTPUT_SUPPORT.equals(kind) ? FONTO_TYPE_FILE : kind;
+    }
+
+    protected static String computeDimension(DocumentModel doc) {
+
+        String schema;
+        String prefix;
+        switch (doc.getType()) {
+        case "Picture":
+            schema = "picture";
+            prefix = "picture:info";
+            break;
+
+        case "Video":
+            schema = "video";
+            prefix = "vid:info";
+            break;
+
+        default:
+            return null;
+        }
+        if (!doc.hasSchema(schema)) {
+            return null;
+        }
+
+        Serializable width = doc.getPropertyValue(prefix + "/width");
+        Serializable height = doc.getPropertyValue(prefix + "/height");
+        if (width == null && height == null) {
+            return null;
+        }
+        return width + "x" + height;
+    }
+
+    protected static String computeDuration(DocumentModel doc) {
+
+        if (!"Video".equals(doc.getType()) || !doc.hasSchema("video")) {
+            return null;
+        }
+
+        Number duration = (Number) doc.getPropertyValue("vid:info/duration");
+        return duration == null ? null : Utilities.formatDuration(duration.longValue());
+    }
+
+    protected static boolean setIfChanged(DocumentModel doc, String xpath, String value) {
+
+        if (Objects.equals(doc.getPropertyValue(xpath), value)) {
+            return false;
+        }
+        doc.setPropertyValue(xpath, value);
+        return true;
+    }
+
+}
@@ -26,6 +26,11 @@ import org.nuxeo.common.xmap.annotation.XObject;
  */
 @XObject("configuration")
 public class FontoXMLConfigDescriptor {
+
+    // The browser must revalidate (cheap, 304), shared caches must not store (documents are protected by ACLs)
+    public static final String DEFAULT_ASSET_CACHE_CONTROL = "private, no-cache";
+
+    public static final String DEFAULT_IMMUTABLE_CACHE_CONTROL = "private, max-age=31536000, immutable";
     
     @XObject("creation")
     protected static class CreationDescriptor{
@@ -60,6 +65,100 @@ public class FontoXMLConfigDescriptor {
         
     }
     
+    @XObject("cache")
+    protected static class CacheDescriptor{
+
+        // Max. number of ancestor chains kept in memory (see HierarchyCache)
+        @XNode("hierarchySize")
+        protected int hierarchySize = 5000;
+
+        // Max. number of previews kept in memory (see PreviewCache)
+        @XNode("previewSize")
+        protected int previewSize = 200;
+
+        @XNode("previewOnDisk")
+        protected boolean previewOnDisk = true;
+
+        // Empty => in the data directory of the server
+        @XNode("previewDirectory")
+        protected String previewDirectory;
+
+        // Max. size of the previews on disk, in MB. 0 => no limit
+        @XNode("previewDiskSize")
+        protected long previewDiskSize = 1024;
+
+        // Max. number of POST /browse pages kept in memory (see BrowseCache)
+        @XNode("browseSize")
+        protected int browseSize = 500;
+        
+    }
+    
+    @XObject("preview")
+    protected static class PreviewDescriptor{
+
+        // Max. number of resizes running at the same time. <= 0 => half the number of processors
+        @XNode("maxConcurrentResizes")
+        protected int maxConcurrentResizes = 0;
+
+        // Max. time to calculate a preview, or to wait for another request calculating it, in seconds
+        @XNode("timeout")
+        protected int timeout = 60;
+
+        // Calculate the previews in a Work when an asset is created/its content changes
+        @XNode("pregenerate")
+        protected boolean pregenerate = true;
+        
+    }
+    
+    @XObject("browse")
+    protected static class BrowseDescriptor{
+
+        // Pages with at least this number of items are built in parallel. <= 0 => never
+        @XNode("parallelThreshold")
+        protected int parallelThreshold = 200;
+
+        // Max. number of threads building items. <= 0 => the number of processors
+        @XNode("parallelism")
+        protected int parallelism = 0;
+        
+    }
+    
+    @XObject("autosave")
+    protected static class AutosaveDescriptor{
+
+        // Keep the content of the PUT /document with autosave=true in memory, saved every flushInterval
+        @XNode("writeBehind")
+        protected boolean writeBehind = false;
+
+        // In seconds
+        @XNode("flushInterval")
+        protected int flushInterval = 30;
+        
+    }
+    
+    @XObject("upload")
+    protected static class UploadDescriptor{
+
+        // XML content of PUT/POST /document bigger than this number of characters is written to a temp. file instead
+        // of being kept in memory. <= 0 => never
+        @XNode("spoolThreshold")
+        protected long spoolThreshold = 1024 * 1024;
+        
+    }
+    
+    @XObject("http")
+    protected static class HttpDescriptor{
+
+        // Cache-Control sent with GET /asset and /asset/preview
+        @XNode("assetCacheControl")
+        protected String assetCacheControl = DEFAULT_ASSET_CACHE_CONTROL;
+
+        // Cache-Control sent when the request is addressed by digest (the content can't change)
+        @XNode("immutableAssetCacheControl")
+        protected String immutableAssetCacheControl = DEFAULT_IMMUTABLE_CACHE_CONTROL;
+        
+    }
+    
     @XNode(value="creation")
     protected CreationDescriptor creationDescriptor = new CreationDescriptor();
     
@@ -69,6 +168,24 @@ public class FontoXMLConfigDescriptor {
     @XNode(value="rendition")
     protected RenditionDescriptor renditionDescriptor = new RenditionDescriptor();
     
+    @XNode(value="cache")
+    protected CacheDescriptor cacheDescriptor = new CacheDescriptor();
+    
+    @XNode(value="preview")
+    protected PreviewDescriptor previewDescriptor = new PreviewDescriptor();
+    
+    @XNode(value="browse")
+    protected BrowseDescriptor browseDescriptor = new BrowseDescriptor();
+    
+    @XNode(value="autosave")
+    protected AutosaveDescriptor autosaveDescriptor = new AutosaveDescriptor();
+    
+    @XNode(value="upload")
+    protected UploadDescriptor uploadDescriptor = new UploadDescriptor();
+    
+    @XNode(value="http")
+    protected HttpDescriptor httpDescriptor = new HttpDescriptor();
+    
     public String getTypeForNewXMLDocument() {
         return creationDescriptor.typeForNewXMLDocument;
     }
@@ -93,4 +210,68 @@ public class FontoXMLConfigDescriptor {
         return renditionDescriptor.xpath;
     }
 
+    public int getHierarchyCacheSize() {
+        return cacheDescriptor.hierarchySize;
+    }
+
+    public int getPreviewCacheSize() {
+        return cacheDescriptor.previewSize;
+    }
+
+    public boolean isPreviewCacheOnDisk() {
+        return cacheDescriptor.previewOnDisk;
+    }
+
+    public String getPreviewCacheDirectory() {
+        return cacheDescriptor.previewDirectory;
+    }
+
+    public long getPreviewCacheDiskSize() {
+        return cacheDescriptor.previewDiskSize;
+    }
+
+    public int getBrowseCacheSize() {
+        return cacheDescriptor.browseSize;
+    }
+
+    public int getMaxConcurrentResizes() {
+        return previewDescriptor.maxConcurrentResizes;
+    }
+
+    public int getPreviewTimeout() {
+        return previewDescriptor.timeout;
+    }
+
+    public boolean isPreviewPregenerationEnabled() {
+        return previewDescriptor.pregenerate;
+    }
+
+    public int getBrowseParallelThreshold() {
+        return browseDescriptor.parallelThreshold;
+    }
+
+    public int getBrowseParallelism() {
+        return browseDescriptor.parallelism;
+    }
+
+    public boolean isAutosaveWriteBehind() {
+        return autosaveDescriptor.writeBehind;
+    }
+
+    public int getAutosaveFlushInterval() {
+        return autosaveDescriptor.flushInterval;
+    }
+
+    public long getUploadSpoolThreshold() {
+        return uploadDescriptor.spoolThreshold;
+    }
+
+    public String getAssetCacheControl() {
+        return httpDescriptor.assetCacheControl;
+    }
+
+    public String getImmutableAssetCacheControl() {
+        return httpDescriptor.immutableAssetCacheControl;
+    }
+
 }
@@ -135,4 +135,12 @@ public interface FontoXMLService {
      */
     public DocumentModel handleOutput(CoreSession session, DocumentModel doc, DocumentModel mainDoc);
 
+    /**
+     * Returns the current configuration, as contributed to the "configuration" extension point
+     * 
+     * @return the configuration
+     * @since 10.10
+     */
+    public FontoXMLConfigDescriptor getConfiguration();
+
 }
@@ -5,6 +5,7 @@ import java.io.Serializable;
 import java.util.HashMap;
 
 import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.common.utils.Path;
 import org.nuxeo.ecm.automation.AutomationService;
 import org.nuxeo.ecm.automation.OperationContext;
 import org.nuxeo.ecm.automation.OperationException;
@@ -22,10 +23,18 @@ import org.nuxeo.ecm.platform.mimetype.interfaces.MimetypeRegistry;
 import org.nuxeo.ecm.platform.picture.api.PictureView;
 import org.nuxeo.ecm.platform.picture.api.adapters.MultiviewPicture;
 import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.model.ComponentContext;
 import org.nuxeo.runtime.model.ComponentInstance;
 import org.nuxeo.runtime.model.DefaultComponent;
 
+import com.nuxeo.fontoxml.autosave.AutosaveBuffer;
+import com.nuxeo.fontoxml.cache.BrowseCache;
+import com.nuxeo.fontoxml.cache.ContainerCache;
+import com.nuxeo.fontoxml.cache.HierarchyCache;
+import com.nuxeo.fontoxml.cache.PreviewCache;
+import com.nuxeo.fontoxml.servlet.AssetPreview;
 import com.nuxeo.fontoxml.servlet.Constants;
+import com.nuxeo.fontoxml.servlet.DocumentBrowser;
 import com.nuxeo.fontoxml.servlet.Utilities;
 
 public class FontoXMLServiceImpl extends DefaultComponent implements FontoXMLService {
@@ -42,6 +51,21 @@ public class FontoXMLServiceImpl extends DefaultComponent implements FontoXMLSer
         }
     }
 
+    @Override
+    public void stop(ComponentContext context) throws InterruptedException {
+
+        // Save what Fonto autosaved before anything else stops
+        AutosaveBuffer.shutdown();
+        // Caches are local to this node and to this runtime
+        HierarchyCache.reset();
+        BrowseCache.reset();
+        ContainerCache.reset();
+        PreviewCache.reset();
+        AssetPreview.shutdown();
+        DocumentBrowser.shutdown();
+    }
+
+    @Override
     public FontoXMLConfigDescriptor getConfiguration() {
         return config;
     }
@@ -146,19 +170,9 @@ public class FontoXMLServiceImpl extends DefaultComponent implements FontoXMLSer
             }
         }
 
-        // 2. Use the suggested folder
-        DocumentModel container = null;
-        if (folder != null) {
-            container = folder;
-        }
-        if (container == null && mainDoc != null) {
-            if (mainDoc.isFolder()) {
-                container = mainDoc;
-            } else {
-                container = session.getParentDocument(mainDoc.getParentRef());
-            }
-        }
-        if (container == null) {
+        // 2. Use the suggested folder, else the container of mainDoc
+        String containerPath = getContainerPath(folder, mainDoc);
+        if (containerPath == null) {
             // We must give up...
             throw new NuxeoException("Cannot find a container for the new document");
         }
@@ -178,13 +192,13 @@ public class FontoXMLServiceImpl extends DefaultComponent implements FontoXMLSer
             // Use the filemanager so a plugin can decide which type of document to create
             FileManager fileManager = Framework.getService(FileManager.class);
 
-            FileImporterContext context = FileImporterContext.builder(session, content, container.getPathAsString())
+            FileImporterContext context = FileImporterContext.builder(session, content, containerPath)
                                                              .overwrite(true)
                                                              .fileName(fileName)
                                                              .build();
             doc = fileManager.createOrUpdateDocument(context);
         } else {
-            doc = session.createDocumentModel(container.getPathAsString(), fileName, xmlDocType);
+            doc = session.createDocumentModel(containerPath, fileName, xmlDocType);
             doc.setPropertyValue("dc:title", fileName);
             doc.setPropertyValue("file:content", (Serializable) content);
             doc = session.createDocument(doc);
@@ -194,6 +208,25 @@ public class FontoXMLServiceImpl extends DefaultComponent implements FontoXMLSer
         return doc;
     }
 
+    /*
+     * The path of the folder, else the one of mainDoc if it is a folder, else the one of its parent: mainDoc and the
+     * new document are siblings. (The parent path is deduced from the path of mainDoc, no need to read the parent.)
+     * Null if there is neither.
+     */
+    protected String getContainerPath(DocumentModel folder, DocumentModel mainDoc) {
+
+        if (folder != null) {
+            return folder.getPathAsString();
+        }
+        if (mainDoc == null || mainDoc.getPathAsString() == null) {
+            return null;
+        }
+        if (mainDoc.isFolder()) {
+            return mainDoc.getPathAsString();
+        }
+        return new Path(mainDoc.getPathAsString()).removeLastSegments(1).toString();
+    }
+
     /*
      * If there is no callback chain defined, we create in the folder.
      * If the folder is null, we create in the container of mainDoc, or in mainDoc if it is a container
@@ -209,6 +242,7 @@ public class FontoXMLServiceImpl extends DefaultComponent implements FontoXMLSer
     public DocumentModel createAsset(CoreSession session, Blob content, DocumentModel mainDoc, DocumentModel folder)
             throws IOException {
 
+        // Previews are pregenerated once the thumbnail is calculated (see PreviewGenerationListener)
         return createDocument(session, content, mainDoc, folder, true);
     }
 
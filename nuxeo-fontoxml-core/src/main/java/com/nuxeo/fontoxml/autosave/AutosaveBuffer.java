@@ -0,0 +1,386 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package com.nuxeo.fontoxml.autosave;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentSecurityException;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.Lock;
+import org.nuxeo.ecm.core.api.LockException;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+import com.nuxeo.fontoxml.FontoXMLConfigDescriptor;
+import com.nuxeo.fontoxml.FontoXMLService;
+import com.nuxeo.fontoxml.servlet.Utilities;
+
+/**
+ * Write-behind buffer for the PUT /document sent by Fonto with <code>autosave</code> = true. Only the latest content
+ * of each document is kept (in memory, or in a temporary file when big), and it is saved:
+ * <ul>
+ * <li>When it has been waiting for the configured flush interval</li>
+ * <li>When the user releases the lock on the document</li>
+ * <li>When the component stops</li>
+ * </ul>
+ * An explicit save (<code>autosave</code> = false) is always written at once, and replaces the pending content.
+ * <br/>
+ * A GET /document returns the pending content, if any, so reloading a document in Fonto does not lose what was
+ * typed since the last flush.
+ * <br/>
+ * A flush that fails is retried at the next flushes, up to {@link #MAX_ATTEMPTS} times. When it can't succeed
+ * (permission removed, lock released or taken by someone else, ...) the content is kept, not written anymore, and
+ * reported by {@link #getFailure(String, String)}: the next autosave is refused, GET /document still returns it and an
+ * explicit save writes it.
+ * <br/>
+ * A content is written only while its author still holds the lock they had when sending it, so it never overwrites
+ * changes made after the lock was released.
+ * <br/>
+ * The buffer is local to the node: in a cluster, the requests of an edit session must go to the same node (sticky
+ * sessions). If the lock is released on another node, the content held by this one can't be written anymore (the
+ * lock is gone) and is reported as failed.
+ *
+ * @since 10.10
+ */
+public class AutosaveBuffer {
+
+    private static final Log log = LogFactory.getLog(AutosaveBuffer.class);
+
+    protected static final String SEPARATOR = "/";
+
+    // Writes of a document (flush, explicit save) are serialized with one of these locks, so an older content can't
+    // be committed after a newer one
+    protected static final int LOCK_STRIPES = 64;
+
+    // Then a failure is considered permanent
+    public static final int MAX_ATTEMPTS = 5;
+
+    protected static AutosaveBuffer instance = null;
+
+    protected static class PendingSave {
+
+        protected final String repositoryName;
+
+        protected final String docId;
+
+        protected final String username;
+
+        // In memory or in a temp. file, see SpoolingWriter
+        protected final Blob content;
+
+        // When the first content not yet saved was received. Not updated by the next PUTs, so a user typing
+        // continuously still has the document saved every interval
+        protected final long since;
+
+        // The user held the lock when sending the content => it is not written if they don't anymore
+        protected final boolean locked;
+
+        // Failed writes
+        protected final int attempts;
+
+        // Set when the content can't be written anymore
+        protected final String failure;
+
+        protected PendingSave(String repositoryName, String docId, String username, Blob content, long since,
+                boolean locked, int attempts, String failure) {
+            this.repositoryName = repositoryName;
+            this.docId = docId;
+            this.username = username;
+            this.content = content;
+            this.since = since;
+            this.locked = locked;
+            this.attempts = attempts;
+            this.failure = failure;
+        }
+
+        protected PendingSave failed(String failure) {
+            return new PendingSave(repositoryName, docId, username, content, since, locked, attempts + 1, failure);
+        }
+    }
+
+    protected final Map<String, PendingSave> pending = new ConcurrentHashMap<>();
+
+    protected final Object[] locks = new Object[LOCK_STRIPES];
+
+    protected final long flushIntervalMs;
+
+    protected ScheduledExecutorService flusher = null;
+
+    protected AutosaveBuffer(boolean enabled, int flushIntervalSeconds) {
+        flushIntervalMs = enabled ? TimeUnit.SECONDS.toMillis(Math.max(1, flushIntervalSeconds)) : 0;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    public static synchronized AutosaveBuffer getInstance() {
+        if (instance == null) {
+            FontoXMLConfigDescriptor config = Framework.getService(FontoXMLService.class).getConfiguration();
+            if (config == null) {
+                instance = new AutosaveBuffer(false, 0);
+            } else {
+                instance = new AutosaveBuffer(config.isAutosaveWriteBehind(), config.getAutosaveFlushInterval());
+            }
+            instance.startFlusher();
+        }
+        return instance;
+    }
+
+    /**
+     * Saves all the pending contents and stops the flusher (called when the component stops)
+     *
+     * @since 10.10
+     */
+    public static synchronized void shutdown() throws InterruptedException {
+        if (instance != null) {
+            if (instance.flusher != null) {
+                instance.flusher.shutdown();
+                if (!instance.flusher.awaitTermination(5, TimeUnit.SECONDS)) {
+                    instance.flusher.shutdownNow();
+                }
+            }
+            instance.flushAll();
+            instance.pending.forEach((key, save) -> log.error("Autosaved content of " + key + " for "
+                    + save.username + " lost, it could not be saved: " + StringUtils.defaultString(save.failure)));
+            instance = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return flushIntervalMs > 0;
+    }
+
+    /**
+     * Keeps the content until the next flush. Replaces the content pending for this document, if any.
+     * <br/>
+     * If the content is the one already saved (undo, ...), there is nothing to save anymore and the pending content
+     * is dropped.
+     *
+     * @param session
+     * @param docId
+     * @param content
+     * @since 10.10
+     */
+    public void put(CoreSession session, String docId, Blob content) {
+
+        String repositoryName = session.getRepositoryName();
+        String username = session.getPrincipal().getName();
+        String key = getKey(repositoryName, docId);
+        synchronized (getLock(key)) {
+            // Read in the lock, a flush could be saving this document
+            DocumentModel doc = session.getDocument(new IdRef(docId));
+            Blob blob = (Blob) doc.getPropertyValue("file:content");
+            if (Utilities.isSameContent(blob, content)) {
+                pending.remove(key);
+                return;
+            }
+            Lock lock = doc.getLockInfo();
+            boolean locked = lock != null && username.equals(lock.getOwner());
+            pending.compute(key, (k, previous) -> new PendingSave(repositoryName, docId, username, content,
+                    previous == null ? System.currentTimeMillis() : previous.since, locked, 0, null));
+        }
+    }
+
+    /**
+     * @param repositoryName
+     * @param docId
+     * @return the content waiting to be saved, null if there is none
+     * @since 10.10
+     */
+    public Blob getPendingContent(String repositoryName, String docId) {
+
+        PendingSave save = pending.get(getKey(repositoryName, docId));
+        return save == null ? null : save.content;
+    }
+
+    /**
+     * Why the pending content of the document can't be saved, if it failed permanently
+     *
+     * @param repositoryName
+     * @param docId
+     * @return the reason, null if there is no pending content or it did not fail
+     * @since 10.10
+     */
+    public String getFailure(String repositoryName, String docId) {
+
+        PendingSave save = pending.get(getKey(repositoryName, docId));
+        return save == null ? null : save.failure;
+    }
+
+    /**
+     * Saves the pending content of the document now, if any, in the current transaction. Saved as the user who sent
+     * it. If it fails, the content is kept and the exception thrown.
+     *
+     * @param session
+     * @param docId
+     * @return true if a content was saved on this node
+     * @since 10.10
+     */
+    public boolean flush(CoreSession session, String docId) {
+
+        String key = getKey(session.getRepositoryName(), docId);
+        synchronized (getLock(key)) {
+            PendingSave save = pending.get(key);
+            if (save == null || save.failure != null) {
+                return false;
+            }
+            if (save.username.equals(session.getPrincipal().getName())) {
+                write(session, save);
+            } else {
+                write(CoreInstance.getCoreSession(save.repositoryName, save.username), save);
+            }
+            pending.remove(key, save);
+            return true;
+        }
+    }
+
+    /**
+     * Saves a content received with <code>autosave</code> = false: it is written at once and the pending content of
+     * the document, older, is dropped.
+     *
+     * @param session
+     * @param doc
+     * @param content
+     * @return the saved document
+     * @since 10.10
+     */
+    public DocumentModel saveNow(CoreSession session, DocumentModel doc, Blob content) {
+
+        String key = getKey(session.getRepositoryName(), doc.getId());
+        synchronized (getLock(key)) {
+            DocumentModel saved = Utilities.saveXMLContent(session, doc, content, false);
+            // Also drops a content that could not be saved: the user chose to save this one
+            pending.remove(key);
+            return saved;
+        }
+    }
+
+    /**
+     * Saves all the pending contents, each one in its own transaction
+     *
+     * @since 10.10
+     */
+    public void flushAll() {
+        flushOlderThan(Long.MAX_VALUE);
+    }
+
+    protected void startFlusher() {
+
+        if (!isEnabled()) {
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "fontoxml-autosave-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        // Check twice per interval, so a content never waits more than 1.5 interval
+        long period = Math.max(500, flushIntervalMs / 2);
+        flusher.scheduleWithFixedDelay(() -> flushOlderThan(System.currentTimeMillis() - flushIntervalMs), period,
+                period, TimeUnit.MILLISECONDS);
+    }
+
+    protected void flushOlderThan(long time) {
+
+        List<String> keys = new ArrayList<>();
+        pending.forEach((key, save) -> {
+            if (save.since <= time && save.failure == null) {
+                keys.add(key);
+            }
+        });
+        for (String key : keys) {
+            flushInTransaction(key);
+        }
+    }
+
+    /*
+     * Writes the pending content in its own transaction. Removed only once committed, put back with the failure
+     * otherwise
+     */
+    protected void flushInTransaction(String key) {
+
+        synchronized (getLock(key)) {
+            PendingSave save = pending.get(key);
+            if (save == null || save.failure != null) {
+                return;
+            }
+            try {
+                TransactionHelper.runInTransaction(
+                        () -> write(CoreInstance.getCoreSession(save.repositoryName, save.username), save));
+                pending.remove(key, save);
+            } catch (RuntimeException e) {
+                PendingSave failed;
+                if (isPermanentFailure(e) || save.attempts + 1 >= MAX_ATTEMPTS) {
+                    failed = save.failed(e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+                    log.error("Cannot save the autosaved content of " + key + " for " + save.username
+                            + ", it is kept until the document is explicitly saved", e);
+                } else {
+                    // Retried at the next flush
+                    failed = save.failed(null);
+                    log.warn("Failed to save the autosaved content of " + key + " for " + save.username + " (attempt "
+                            + failed.attempts + "/" + MAX_ATTEMPTS + "): " + e.getMessage());
+                }
+                pending.replace(key, save, failed);
+            }
+        }
+    }
+
+    protected boolean isPermanentFailure(RuntimeException e) {
+        return e instanceof DocumentSecurityException || e instanceof LockException;
+    }
+
+    protected void write(CoreSession session, PendingSave save) {
+
+        IdRef docRef = new IdRef(save.docId);
+        if (!session.exists(docRef)) {
+            log.warn("docId " + save.docId + " not found, autosaved content dropped");
+            return;
+        }
+        DocumentModel doc = session.getDocument(docRef);
+        // Don't overwrite what was saved after the lock was released, or by the new owner of the lock
+        Lock lock = doc.getLockInfo();
+        String lockOwner = lock == null ? null : lock.getOwner();
+        if ((lockOwner != null || save.locked) && !save.username.equals(lockOwner)) {
+            throw new LockException("The lock of the document was released before the autosaved content was saved");
+        }
+        Utilities.saveXMLContent(session, doc, save.content, true);
+    }
+
+    protected Object getLock(String key) {
+        return locks[Math.floorMod(key.hashCode(), LOCK_STRIPES)];
+    }
+
+    protected static String getKey(String repositoryName, String docId) {
+        return repositoryName + SEPARATOR + docId;
+    }
+
+}
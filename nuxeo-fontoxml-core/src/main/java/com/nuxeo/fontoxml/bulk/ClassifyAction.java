@@ -0,0 +1,88 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package com.nuxeo.fontoxml.bulk;
+
+import static org.nuxeo.ecm.core.bulk.BulkServiceImpl.STATUS_STREAM;
+import static org.nuxeo.lib.stream.computation.AbstractComputation.INPUT_1;
+import static org.nuxeo.lib.stream.computation.AbstractComputation.OUTPUT_1;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.VersioningOption;
+import org.nuxeo.ecm.core.api.versioning.VersioningService;
+import org.nuxeo.ecm.core.bulk.action.computation.AbstractBulkComputation;
+import org.nuxeo.lib.stream.computation.Topology;
+import org.nuxeo.runtime.stream.StreamProcessorTopology;
+
+import com.nuxeo.fontoxml.FontoXMLClassifier;
+
+/**
+ * Bulk action filling the <code>fontoxml</code> schema of existing documents (the ones created before the plugin
+ * was deployed, or before a change in the classification rules). Documents already up to date are not saved.
+ * <br/>
+ * Run it with the Bulk.RunAction operation, see the README.
+ *
+ * @since 10.10
+ */
+public class ClassifyAction implements StreamProcessorTopology {
+
+    public static final String ACTION_NAME = "fontoxmlClassify";
+
+    public static final String ACTION_FULL_NAME = "bulk/" + ACTION_NAME;
+
+    // Same values as DublinCoreListener.DISABLE_DUBLINCORE_LISTENER and NXAuditEventsService.DISABLE_AUDIT_LOGGER,
+    // not worth a dependency: the classification is not a user modification.
+    protected static final String DISABLE_DUBLINCORE_LISTENER = "disableDublinCoreListener";
+
+    protected static final String DISABLE_AUDIT_LOGGER = "disableAuditLogger";
+
+    @Override
+    public Topology getTopology(Map<String, String> options) {
+        return Topology.builder()
+                       .addComputation(ClassifyComputation::new,
+                               Arrays.asList(INPUT_1 + ":" + ACTION_FULL_NAME, OUTPUT_1 + ":" + STATUS_STREAM))
+                       .build();
+    }
+
+    public static class ClassifyComputation extends AbstractBulkComputation {
+
+        public ClassifyComputation() {
+            super(ACTION_FULL_NAME);
+        }
+
+        @Override
+        protected void compute(CoreSession session, List<String> ids, Map<String, Serializable> properties) {
+
+            for (DocumentModel doc : loadDocuments(session, ids)) {
+                if (FontoXMLClassifier.classify(doc)) {
+                    doc.putContextData(VersioningService.VERSIONING_OPTION, VersioningOption.NONE);
+                    doc.putContextData(DISABLE_DUBLINCORE_LISTENER, Boolean.TRUE);
+                    doc.putContextData(DISABLE_AUDIT_LOGGER, Boolean.TRUE);
+                    session.saveDocument(doc);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package com.nuxeo.fontoxml.cache;
+
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
+import org.nuxeo.runtime.api.Framework;
+
+import com.nuxeo.fontoxml.FontoXMLConfigDescriptor;
+import com.nuxeo.fontoxml.FontoXMLService;
+
+/**
+ * Caches the JSON pages returned by POST /browse, because Fonto sends the same request again and again while the
+ * user navigates in the asset picker.
+ * <br/>
+ * The key is the repository, the browsed folder, the user (name and groups, which is what the permissions are
+ * checked against) and the query (asset and result types, sort, page).
+ * <br/>
+ * Entries are invalidated by the <code>BrowseCacheInvalidationListener</code> when a child of the folder is created,
+ * modified, moved, trashed or removed. When a folder changes (its title is in the hierarchy of its descendants) or
+ * the security changes, the whole cache is dropped.
+ * <br/>
+ * Invalidations are sent to the other nodes of a cluster (see <code>ClusterInvalidator</code>).
+ *
+ * @since 10.10
+ */
+public class BrowseCache {
+
+    private static final Log log = LogFactory.getLog(BrowseCache.class);
+
+    public static final String TOPIC = "fontoxmlBrowseCache";
+
+    protected static final String ALL = "*";
+
+    protected static final String SEPARATOR = "/";
+
+    // Bigger pages are sent but not cached
+    public static final int MAX_CACHED_PAGE_LENGTH = 1024 * 1024;
+
+    protected static BrowseCache instance = null;
+
+    protected final LRUCache<String, String> cache;
+
+    // Incremented by every invalidation, see put()
+    protected final AtomicLong generation = new AtomicLong();
+
+    protected final ClusterInvalidator clusterInvalidator = new ClusterInvalidator(TOPIC, this::onInvalidation);
+
+    protected BrowseCache(int maxSize) {
+        cache = new LRUCache<>(maxSize);
+    }
+
+    public static synchronized BrowseCache getInstance() {
+        if (instance == null) {
+            FontoXMLConfigDescriptor config = Framework.getService(FontoXMLService.class).getConfiguration();
+            instance = new BrowseCache(config == null ? 0 : config.getBrowseCacheSize());
+            instance.clusterInvalidator.subscribe();
+        }
+        return instance;
+    }
+
+    /**
+     * Drops the cache and stops listening to the other nodes (called when the component stops)
+     */
+    public static synchronized void reset() {
+        if (instance != null) {
+            instance.clusterInvalidator.unsubscribe();
+            instance = null;
+        }
+    }
+
+    /**
+     * Returns the key of a page
+     * 
+     * @param session
+     * @param folderId the id of the browsed folder
+     * @param query what identifies the page in this folder (the NXQL query, the limit and the offset)
+     * @return the key
+     * @since 10.10
+     */
+    public String getKey(CoreSession session, String folderId, String query) {
+
+        return getFolderPrefix(session.getRepositoryName(), folderId) + getPrincipalSignature(session.getPrincipal())
+                + SEPARATOR + query;
+    }
+
+    public boolean isEnabled() {
+        return cache.isEnabled();
+    }
+
+    public String get(String key) {
+        return cache.get(key);
+    }
+
+    /**
+     * Returns the current generation, to be passed to <code>put</code> once the page is calculated
+     * 
+     * @return the generation
+     * @since 10.10
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Caches the page, unless something was invalidated since it was calculated (it could be outdated)
+     * 
+     * @param key
+     * @param json
+     * @param generationBefore the value of <code>getGeneration()</code> before running the query
+     * @since 10.10
+     */
+    public void put(String key, String json, long generationBefore) {
+
+        cache.put(key, json);
+        // An invalidation may have run between the check and the put, check again
+        if (generation.get() != generationBefore) {
+            cache.remove(key);
+        }
+    }
+
+    /**
+     * Removes all the cached pages of the folder, on this node and on the other nodes of the cluster
+     * 
+     * @param repositoryName
+     * @param folderId
+     * @since 10.10
+     */
+    public void invalidate(String repositoryName, String folderId) {
+
+        invalidateLocally(repositoryName, folderId);
+        clusterInvalidator.publish(repositoryName + SEPARATOR + folderId);
+    }
+
+    /**
+     * Removes all the cached pages, on this node and on the other nodes of the cluster
+     * 
+     * @since 10.10
+     */
+    public void invalidateAll() {
+
+        invalidateAllLocally();
+        clusterInvalidator.publish(ALL);
+    }
+
+    protected void invalidateLocally(String repositoryName, String folderId) {
+
+        if (log.isDebugEnabled()) {
+            log.debug("Invalidating browse pages of " + folderId);
+        }
+        generation.incrementAndGet();
+        String prefix = getFolderPrefix(repositoryName, folderId);
+        cache.removeIf((key, json) -> key.startsWith(prefix));
+    }
+
+    protected void invalidateAllLocally() {
+
+        generation.incrementAndGet();
+        cache.clear();
+    }
+
+    protected String getFolderPrefix(String repositoryName, String folderId) {
+        return repositoryName + SEPARATOR + folderId + SEPARATOR;
+    }
+
+    /*
+     * Users with the same name and groups see the same documents
+     */
+    protected String getPrincipalSignature(NuxeoPrincipal principal) {
+
+        List<String> groups = principal.getAllGroups();
+        return principal.getName() + (groups == null ? "" : new TreeSet<>(groups).toString());
+    }
+
+    /*
+     * Invalidation from another node: "*" or "repository/folderId"
+     */
+    protected void onInvalidation(String invalidation) {
+
+        String[] parts = invalidation.split(SEPARATOR, 2);
+        if (parts.length == 2) {
+            invalidateLocally(parts[0], parts[1]);
+        } else {
+            invalidateAllLocally();
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package com.nuxeo.fontoxml.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import javax.transaction.Synchronization;
+
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.pubsub.PubSubService;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Sends the invalidations of a local cache to the other nodes of a cluster with the <code>PubSubService</code>, and
+ * applies theirs. (Out of a cluster, or in unit tests, the runtime uses its in-memory provider)
+ * <br/>
+ * A message is "nodeId/invalidation", each node ignores its own messages (the cache was already invalidated
+ * locally).
+ *
+ * @since 10.10
+ */
+public class ClusterInvalidator {
+
+    protected static final String SEPARATOR = "/";
+
+    protected final String topic;
+
+    protected final String nodeId = UUID.randomUUID().toString();
+
+    protected final Consumer<String> onInvalidation;
+
+    protected BiConsumer<String, byte[]> subscriber;
+
+    /**
+     * @param topic
+     * @param onInvalidation called with the invalidations sent by the other nodes
+     */
+    public ClusterInvalidator(String topic, Consumer<String> onInvalidation) {
+        this.topic = topic;
+        this.onInvalidation = onInvalidation;
+    }
+
+    public void publish(String invalidation) {
+
+        PubSubService pubSub = Framework.getService(PubSubService.class);
+        if (pubSub != null) {
+            pubSub.publish(topic, (nodeId + SEPARATOR + invalidation).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    public void subscribe() {
+
+        PubSubService pubSub = Framework.getService(PubSubService.class);
+        if (pubSub != null) {
+            subscriber = this::onMessage;
+            pubSub.registerSubscriber(topic, subscriber);
+        }
+    }
+
+    public void unsubscribe() {
+
+        PubSubService pubSub = Framework.getService(PubSubService.class);
+        if (pubSub != null && subscriber != null) {
+            pubSub.unregisterSubscriber(topic, subscriber);
+        }
+        subscriber = null;
+    }
+
+    /**
+     * Runs the invalidation once the current transaction is completed, at once if there is none. Invalidating before
+     * the commit would let a request running at the same time cache the old values again.
+     *
+     * @param invalidation
+     * @since 10.10
+     */
+    public static void afterCompletion(Runnable invalidation) {
+
+        if (!TransactionHelper.isTransactionActiveOrMarkedRollback()) {
+            invalidation.run();
+            return;
+        }
+
+        TransactionHelper.registerSynchronization(new Synchronization() {
+
+            @Override
+            public void beforeCompletion() {
+                // Nothing
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                invalidation.run();
+            }
+        });
+    }
+
+    protected void onMessage(String topic, byte[] message) {
+
+        String[] parts = new String(message, StandardCharsets.UTF_8).split(SEPARATOR, 2);
+        if (parts.length == 2 && !parts[0].equals(nodeId)) {
+            onInvalidation.accept(parts[1]);
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package com.nuxeo.fontoxml.cache;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.PathRef;
+
+/**
+ * Caches the id of the root document of each repository, the container POST /browse starts from when Fonto sends no
+ * <code>folderId</code>. It never changes, so there is nothing to invalidate.
+ * <br/>
+ * Only ids are cached, so the permissions are still checked when the documents are read.
+ *
+ * @since 10.10
+ */
+public class ContainerCache {
+
+    protected static ContainerCache instance = null;
+
+    protected final Map<String, String> rootIds = new ConcurrentHashMap<>();
+
+    protected ContainerCache() {
+    }
+
+    public static synchronized ContainerCache getInstance() {
+        if (instance == null) {
+            instance = new ContainerCache();
+        }
+        return instance;
+    }
+
+    /**
+     * Drops the cache (called when the component stops)
+     */
+    public static synchronized void reset() {
+        instance = null;
+    }
+
+    /**
+     * @param session
+     * @return the id of the root document of the repository of the session
+     * @since 10.10
+     */
+    public String getRootId(CoreSession session) {
+
+        return rootIds.computeIfAbsent(session.getRepositoryName(),
+                repo -> session.getDocument(new PathRef("/")).getId());
+    }
+
+}
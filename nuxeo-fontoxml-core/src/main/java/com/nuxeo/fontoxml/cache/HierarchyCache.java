@@ -0,0 +1,185 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package com.nuxeo.fontoxml.cache;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentRef;
+import org.nuxeo.runtime.api.Framework;
+
+import com.nuxeo.fontoxml.FontoXMLConfigDescriptor;
+import com.nuxeo.fontoxml.FontoXMLService;
+
+/**
+ * Caches the chain of ancestors of a document (as returned by <code>CoreSession#getParentDocuments</code>), so
+ * building the hierarchy expected by Fonto (GET /document, POST /browse) does not read the repository for every
+ * document of the same folder.
+ * <br/>
+ * The key is the parent id. As <code>getParentDocuments</code> only returns the documents the user can read, it is
+ * also scoped by repository and user.
+ * <br/>
+ * Entries are invalidated by the <code>HierarchyCacheInvalidationListener</code> when a folder is moved, renamed or
+ * deleted, or when the security changes. This is a local cache, each node of a cluster has its own: invalidations are
+ * sent to the other nodes (see <code>ClusterInvalidator</code>).
+ *
+ * @since 10.10
+ */
+public class HierarchyCache {
+
+    private static final Log log = LogFactory.getLog(HierarchyCache.class);
+
+    /**
+     * One ancestor, with the values Fonto needs
+     */
+    public static class Ancestor {
+
+        protected final String id;
+
+        protected final String label;
+
+        protected final boolean isFolder;
+
+        public Ancestor(String id, String label, boolean isFolder) {
+            this.id = id;
+            this.label = label;
+            this.isFolder = isFolder;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public boolean isFolder() {
+            return isFolder;
+        }
+    }
+
+    public static final String TOPIC = "fontoxmlHierarchyCache";
+
+    protected static final String ALL = "*";
+
+    protected static HierarchyCache instance = null;
+
+    protected final LRUCache<String, List<Ancestor>> cache;
+
+    protected final ClusterInvalidator clusterInvalidator = new ClusterInvalidator(TOPIC, this::onInvalidation);
+
+    protected HierarchyCache(int maxSize) {
+        cache = new LRUCache<>(maxSize);
+    }
+
+    public static synchronized HierarchyCache getInstance() {
+        if (instance == null) {
+            FontoXMLConfigDescriptor config = Framework.getService(FontoXMLService.class).getConfiguration();
+            instance = new HierarchyCache(config == null ? 0 : config.getHierarchyCacheSize());
+            instance.clusterInvalidator.subscribe();
+        }
+        return instance;
+    }
+
+    /**
+     * Drops the cache (called when the component stops)
+     */
+    public static synchronized void reset() {
+        if (instance != null) {
+            instance.clusterInvalidator.unsubscribe();
+            instance = null;
+        }
+    }
+
+    /**
+     * Returns the ancestors of a document whose parent is parentRef: the parent and its own parents, from the top
+     * (root excluded) to the parent.
+     * 
+     * @param session
+     * @param parentRef
+     * @return the list of ancestors, never null
+     * @since 10.10
+     */
+    public List<Ancestor> getAncestors(CoreSession session, DocumentRef parentRef) {
+
+        if (parentRef == null) {
+            return Collections.emptyList();
+        }
+
+        String key = session.getRepositoryName() + "/" + session.getPrincipal().getName() + "/" + parentRef;
+        List<Ancestor> ancestors = cache.get(key);
+        if (ancestors == null) {
+            List<DocumentModel> parents = session.getParentDocuments(parentRef);
+            ancestors = parents.stream()
+                               .map(p -> new Ancestor(p.getId(), p.getTitle(), p.isFolder()))
+                               .collect(Collectors.collectingAndThen(Collectors.toList(),
+                                       Collections::unmodifiableList));
+            cache.put(key, ancestors);
+        }
+
+        return ancestors;
+    }
+
+    /**
+     * Removes all the cached chains containing this document, on this node and on the other nodes of the cluster
+     * 
+     * @param docId
+     * @since 10.10
+     */
+    public void invalidate(String docId) {
+
+        invalidateLocally(docId);
+        clusterInvalidator.publish(docId);
+    }
+
+    /**
+     * Removes all the cached chains, on this node and on the other nodes of the cluster
+     * 
+     * @since 10.10
+     */
+    public void invalidateAll() {
+
+        cache.clear();
+        clusterInvalidator.publish(ALL);
+    }
+
+    protected void invalidateLocally(String docId) {
+
+        if (log.isDebugEnabled()) {
+            log.debug("Invalidating hierarchies containing " + docId);
+        }
+        cache.removeIf((key, ancestors) -> ancestors.stream().anyMatch(a -> a.getId().equals(docId)));
+    }
+
+    protected void onInvalidation(String invalidation) {
+
+        if (ALL.equals(invalidation)) {
+            cache.clear();
+        } else {
+            invalidateLocally(invalidation);
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package com.nuxeo.fontoxml.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiPredicate;
+
+/**
+ * A simple, thread safe, in-memory LRU cache: when it is full, the least recently accessed entry is removed.
+ * <br/>
+ * This is a local cache (per node), invalidation in a cluster must be handled by the caller.
+ *
+ * @since 10.10
+ */
+public class LRUCache<K, V> {
+
+    protected final int maxSize;
+
+    protected final LinkedHashMap<K, V> map;
+
+    public LRUCache(int maxSize) {
+        this.maxSize = maxSize;
+        // accessOrder = true => LRU
+        map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > LRUCache.this.maxSize;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    public synchronized V get(K key) {
+        return map.get(key);
+    }
+
+    public synchronized void put(K key, V value) {
+        if (maxSize > 0) {
+            map.put(key, value);
+        }
+    }
+
+    public synchronized V remove(K key) {
+        return map.remove(key);
+    }
+
+    /**
+     * Removes all the entries matching the predicate
+     * 
+     * @param predicate
+     * @since 10.10
+     */
+    public synchronized void removeIf(BiPredicate<K, V> predicate) {
+        map.entrySet().removeIf(entry -> predicate.test(entry.getKey(), entry.getValue()));
+    }
+
+    public synchronized void clear() {
+        map.clear();
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+}
@@ -0,0 +1,374 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package com.nuxeo.fontoxml.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.common.Environment;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.runtime.api.Framework;
+
+import com.nuxeo.fontoxml.FontoXMLConfigDescriptor;
+import com.nuxeo.fontoxml.FontoXMLService;
+
+/**
+ * Caches the previews (thumbnail and web variants) sent to Fonto, so repeated GET /asset/preview never call the
+ * imaging converters.
+ * <br/>
+ * The key is the digest of the asset's file:content and of the image its thumbnail is calculated from (see
+ * {@link com.nuxeo.fontoxml.servlet.AssetPreview#getCacheDigest}) plus the variant: when the content or its views
+ * change, the digest changes and the old entries are just not used anymore. There is no need for event-based
+ * invalidation.
+ * <br/>
+ * There are two tiers:
+ * <ul>
+ * <li>In memory, LRU, for the small previews (see {@link #MAX_IN_MEMORY_LENGTH})</li>
+ * <li>On disk, so the cache survives restarts. Each preview is stored with a sidecar .properties file holding its
+ * mime type and file name. The folder can be emptied at any time (server stopped), it is rebuilt on demand. Its size
+ * is bounded (see the <code>previewDiskSize</code> configuration): when it is exceeded, the least recently used
+ * previews are removed until it is back under {@link #DISK_CLEANUP_RATIO} of the limit.</li>
+ * </ul>
+ * Both tiers belong to the node. In a cluster, a preview calculated (or pregenerated) on a node is calculated again
+ * the first time another node is asked for it, unless <code>previewDirectory</code> points to a folder shared by all
+ * the nodes: files are written with atomic moves and named after their content, so the nodes can read and write it
+ * at the same time.
+ *
+ * @since 10.10
+ */
+public class PreviewCache {
+
+    private static final Log log = LogFactory.getLog(PreviewCache.class);
+
+    public static final String DEFAULT_DIRECTORY = "fontoxml" + File.separator + "previews";
+
+    // Bigger previews are only cached on disk
+    public static final long MAX_IN_MEMORY_LENGTH = 512 * 1024;
+
+    protected static final String PROP_MIME_TYPE = "mimeType";
+
+    protected static final String PROP_FILENAME = "filename";
+
+    protected static final String PROPS_EXTENSION = ".properties";
+
+    protected static final String TMP_EXTENSION = ".tmp";
+
+    // Older temp. files are leftovers of a crash. (Younger ones can be written by another node, shared folder)
+    protected static final long TMP_MAX_AGE_MS = 3600 * 1000;
+
+    // Removing a bit more than needed, so we don't clean up at every put once the limit is reached
+    public static final double DISK_CLEANUP_RATIO = 0.9;
+
+    protected static PreviewCache instance = null;
+
+    protected final LRUCache<String, Blob> memoryCache;
+
+    // null => no disk tier
+    protected final File directory;
+
+    // In bytes, <= 0 => no limit
+    protected final long maxDiskSize;
+
+    protected final AtomicLong diskSize = new AtomicLong();
+
+    protected final ReentrantLock cleanupLock = new ReentrantLock();
+
+    protected PreviewCache(int memorySize, File directory, long maxDiskSize) {
+        memoryCache = new LRUCache<>(memorySize);
+        this.directory = directory;
+        this.maxDiskSize = maxDiskSize;
+        if (directory != null) {
+            directory.mkdirs();
+            diskSize.set(scanDirectory());
+        }
+    }
+
+    public static synchronized PreviewCache getInstance() {
+        if (instance == null) {
+            FontoXMLConfigDescriptor config = Framework.getService(FontoXMLService.class).getConfiguration();
+            int memorySize = config == null ? 0 : config.getPreviewCacheSize();
+            long maxDiskSize = config == null ? 0 : config.getPreviewCacheDiskSize() * 1024 * 1024;
+            File directory = null;
+            if (config == null || config.isPreviewCacheOnDisk()) {
+                String path = config == null ? null : config.getPreviewCacheDirectory();
+                if (StringUtils.isBlank(path)) {
+                    directory = new File(Environment.getDefault().getData(), DEFAULT_DIRECTORY);
+                } else {
+                    directory = new File(path);
+                }
+            }
+            instance = new PreviewCache(memorySize, directory, maxDiskSize);
+        }
+        return instance;
+    }
+
+    /**
+     * Drops the in-memory tier (called when the component stops). The disk tier is kept.
+     */
+    public static synchronized void reset() {
+        instance = null;
+    }
+
+    /**
+     * Returns the cached preview, or null
+     *
+     * @param digest the cache digest of the asset (AssetPreview#getCacheDigest)
+     * @param variant the Fonto variant (thumbnail, web)
+     * @return the preview or null
+     * @since 10.10
+     */
+    public Blob get(String digest, String variant) {
+
+        String key = getKey(digest, variant);
+        if (key == null) {
+            return null;
+        }
+
+        Blob blob = memoryCache.get(key);
+        if (blob != null || directory == null) {
+            return blob;
+        }
+
+        File file = new File(directory, key);
+        File propsFile = new File(directory, key + PROPS_EXTENSION);
+        if (!file.exists() || !propsFile.exists()) {
+            return null;
+        }
+
+        try (InputStream in = Files.newInputStream(propsFile.toPath())) {
+            Properties props = new Properties();
+            props.load(in);
+            blob = Blobs.createBlob(file, props.getProperty(PROP_MIME_TYPE), null, props.getProperty(PROP_FILENAME));
+            // Used => removed last when cleaning up
+            file.setLastModified(System.currentTimeMillis());
+            blob = keepInMemory(key, blob);
+        } catch (IOException e) {
+            log.warn("Cannot read the cached preview " + key, e);
+            return null;
+        }
+
+        return blob;
+    }
+
+    /**
+     * Stores the preview and returns the cached blob, to be used instead of the one passed (which can be a temporary
+     * file, deleted when the request ends)
+     *
+     * @param digest the cache digest of the asset (AssetPreview#getCacheDigest)
+     * @param variant the Fonto variant (thumbnail, web)
+     * @param preview the calculated preview
+     * @return the cached blob, or the preview if it could not be cached
+     * @since 10.10
+     */
+    public Blob put(String digest, String variant, Blob preview) {
+
+        String key = getKey(digest, variant);
+        if (key == null || preview == null) {
+            return preview;
+        }
+
+        try {
+            Blob blob = null;
+            if (directory != null) {
+                // Write in temp files and move them, so a concurrent reader never sees a partial preview or sidecar
+                File file = new File(directory, key);
+                File propsFile = new File(directory, key + PROPS_EXTENSION);
+                long previousSize = file.length() + propsFile.length();
+
+                File tmp = File.createTempFile(key, TMP_EXTENSION, directory);
+                try (InputStream in = preview.getStream(); OutputStream out = Files.newOutputStream(tmp.toPath())) {
+                    IOUtils.copy(in, out);
+                }
+                moveAtomically(tmp, file);
+
+                Properties props = new Properties();
+                props.setProperty(PROP_MIME_TYPE, StringUtils.defaultString(preview.getMimeType()));
+                props.setProperty(PROP_FILENAME, StringUtils.defaultString(preview.getFilename()));
+                tmp = File.createTempFile(key, TMP_EXTENSION, directory);
+                try (OutputStream out = Files.newOutputStream(tmp.toPath())) {
+                    props.store(out, null);
+                }
+                moveAtomically(tmp, propsFile);
+
+                blob = Blobs.createBlob(file, preview.getMimeType(), null, preview.getFilename());
+                long size = diskSize.addAndGet(file.length() + propsFile.length() - previousSize);
+                if (maxDiskSize > 0 && size > maxDiskSize) {
+                    cleanUpDisk();
+                }
+            } else {
+                blob = preview;
+            }
+
+            return keepInMemory(key, blob);
+
+        } catch (IOException e) {
+            log.warn("Cannot cache the preview " + key, e);
+            return preview;
+        }
+    }
+
+    protected void moveAtomically(File tmp, File target) throws IOException {
+
+        try {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /*
+     * Returns the size of the previews on disk. Temp. files left by a crash are removed.
+     */
+    protected long scanDirectory() {
+
+        long size = 0;
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        long tooOld = System.currentTimeMillis() - TMP_MAX_AGE_MS;
+        for (File file : files) {
+            if (file.getName().endsWith(TMP_EXTENSION)) {
+                if (file.lastModified() < tooOld) {
+                    FileUtils.deleteQuietly(file);
+                }
+            } else {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    /*
+     * Removes the least recently used previews until the disk tier is under DISK_CLEANUP_RATIO of its max. size. Only
+     * one thread cleans up, the others don't wait for it.
+     */
+    protected void cleanUpDisk() {
+
+        if (!cleanupLock.tryLock()) {
+            return;
+        }
+        try {
+            File[] files = directory.listFiles((dir, name) -> !name.endsWith(TMP_EXTENSION));
+            if (files == null) {
+                return;
+            }
+            // Read the dates once, they are changed by concurrent gets while sorting. Start from the actual size: the
+            // folder can be shared with other nodes
+            Map<File, Long> lastModified = new HashMap<>();
+            long actualSize = 0;
+            for (File file : files) {
+                actualSize += file.length();
+                if (!file.getName().endsWith(PROPS_EXTENSION)) {
+                    lastModified.put(file, file.lastModified());
+                }
+            }
+            diskSize.set(actualSize);
+            List<File> sorted = new ArrayList<>(lastModified.keySet());
+            sorted.sort(Comparator.comparing(lastModified::get));
+
+            long target = (long) (maxDiskSize * DISK_CLEANUP_RATIO);
+            int count = 0;
+            for (File file : sorted) {
+                if (diskSize.get() <= target) {
+                    break;
+                }
+                // The sidecar first: a preview without it is not returned by get()
+                File propsFile = new File(directory, file.getName() + PROPS_EXTENSION);
+                long size = file.length() + propsFile.length();
+                FileUtils.deleteQuietly(propsFile);
+                FileUtils.deleteQuietly(file);
+                diskSize.addAndGet(-size);
+                count += 1;
+            }
+            if (log.isDebugEnabled()) {
+                log.debug(count + " previews removed from " + directory);
+            }
+        } finally {
+            cleanupLock.unlock();
+        }
+    }
+
+    /*
+     * Keep the bytes, not the blob: the blob can be file-based and the file can be removed
+     */
+    protected Blob keepInMemory(String key, Blob blob) throws IOException {
+
+        if (blob.getLength() < 0 || blob.getLength() > MAX_IN_MEMORY_LENGTH) {
+            return blob;
+        }
+
+        Blob inMemory = Blobs.createBlob(blob.getByteArray(), blob.getMimeType());
+        inMemory.setFilename(blob.getFilename());
+        memoryCache.put(key, inMemory);
+
+        return inMemory;
+    }
+
+    /**
+     * Removes all the previews, in memory and on disk
+     *
+     * @since 10.10
+     */
+    public void clear() {
+
+        memoryCache.clear();
+        if (directory != null) {
+            try {
+                FileUtils.cleanDirectory(directory);
+                diskSize.set(0);
+            } catch (IOException e) {
+                log.warn("Cannot clear the preview cache directory " + directory, e);
+            }
+        }
+    }
+
+    /*
+     * Returns null if the preview cannot be cached. Digests are hexa strings, but we never know with custom blob
+     * providers => we make sure it is a valid file name.
+     */
+    protected String getKey(String digest, String variant) {
+
+        if (StringUtils.isBlank(digest) || StringUtils.isBlank(variant)) {
+            return null;
+        }
+
+        return (digest + "-" + variant).replaceAll("[^A-Za-z0-9_.-]", "_");
+    }
+
+}
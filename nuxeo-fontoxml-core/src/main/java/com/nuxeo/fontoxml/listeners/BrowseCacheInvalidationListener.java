@@ -0,0 +1,81 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package com.nuxeo.fontoxml.listeners;
+
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.DOCUMENT_CREATED;
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.DOCUMENT_SECURITY_UPDATED;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentRef;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventContext;
+import org.nuxeo.ecm.core.event.EventListener;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+
+import com.nuxeo.fontoxml.cache.BrowseCache;
+import com.nuxeo.fontoxml.cache.ClusterInvalidator;
+
+/**
+ * Invalidates the <code>BrowseCache</code>:
+ * <ul>
+ * <li>The pages of the parent folder when a document is created, modified, moved (both the old and the new parent),
+ * trashed or removed</li>
+ * <li>All the pages when a folder is modified, moved, trashed or removed (its title is part of the hierarchy of all its
+ * descendants), or when the security changes</li>
+ * </ul>
+ * The invalidation runs after the transaction is completed, else a browse running at the same time could cache the
+ * values before the commit again.
+ * 
+ * @since 10.10
+ */
+public class BrowseCacheInvalidationListener implements EventListener {
+
+    @Override
+    public void handleEvent(Event event) {
+
+        EventContext ctx = event.getContext();
+        if (!(ctx instanceof DocumentEventContext)) {
+            return;
+        }
+
+        if (DOCUMENT_SECURITY_UPDATED.equals(event.getName())) {
+            ClusterInvalidator.afterCompletion(() -> BrowseCache.getInstance().invalidateAll());
+            return;
+        }
+
+        DocumentModel doc = ((DocumentEventContext) ctx).getSourceDocument();
+        if (doc == null || doc.isProxy() || doc.isVersion()) {
+            return;
+        }
+
+        if (doc.isFolder() && !DOCUMENT_CREATED.equals(event.getName())) {
+            ClusterInvalidator.afterCompletion(() -> BrowseCache.getInstance().invalidateAll());
+            return;
+        }
+
+        // aboutToMove gives the old parent, documentMoved the new one
+        DocumentRef parentRef = doc.getParentRef();
+        if (parentRef != null) {
+            String repositoryName = doc.getRepositoryName();
+            String parentId = parentRef.toString();
+            ClusterInvalidator.afterCompletion(() -> BrowseCache.getInstance().invalidate(repositoryName, parentId));
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package com.nuxeo.fontoxml.listeners;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventContext;
+import org.nuxeo.ecm.core.event.EventListener;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+
+import com.nuxeo.fontoxml.FontoXMLClassifier;
+
+/**
+ * Fills the <code>fontoxml</code> schema before a document is created or saved, so the values are written with the
+ * document itself (no extra save).
+ *
+ * @since 10.10
+ */
+public class FontoXMLClassificationListener implements EventListener {
+
+    @Override
+    public void handleEvent(Event event) {
+
+        EventContext ctx = event.getContext();
+        if (!(ctx instanceof DocumentEventContext)) {
+            return;
+        }
+
+        DocumentModel doc = ((DocumentEventContext) ctx).getSourceDocument();
+        if (doc != null && !doc.isProxy() && !doc.isVersion()) {
+            FontoXMLClassifier.classify(doc);
+        }
+    }
+
+}
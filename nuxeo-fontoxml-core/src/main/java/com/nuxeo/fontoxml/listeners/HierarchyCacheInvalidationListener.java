@@ -0,0 +1,64 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package com.nuxeo.fontoxml.listeners;
+
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.DOCUMENT_SECURITY_UPDATED;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventContext;
+import org.nuxeo.ecm.core.event.EventListener;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+
+import com.nuxeo.fontoxml.cache.ClusterInvalidator;
+import com.nuxeo.fontoxml.cache.HierarchyCache;
+
+/**
+ * Invalidates the <code>HierarchyCache</code> when a folder is moved, modified (renamed) or removed.
+ * When the security of a document changes, we don't know which users can now read (or not) which ancestors, so we
+ * drop the whole cache.
+ * The invalidation runs after the transaction is completed (else a request running at the same time could cache the
+ * ancestors before the commit again), on all the nodes of the cluster.
+ * 
+ * @since 10.10
+ */
+public class HierarchyCacheInvalidationListener implements EventListener {
+
+    @Override
+    public void handleEvent(Event event) {
+
+        EventContext ctx = event.getContext();
+        if (!(ctx instanceof DocumentEventContext)) {
+            return;
+        }
+
+        if (DOCUMENT_SECURITY_UPDATED.equals(event.getName())) {
+            ClusterInvalidator.afterCompletion(() -> HierarchyCache.getInstance().invalidateAll());
+            return;
+        }
+
+        // Only folders are part of a hierarchy
+        DocumentModel doc = ((DocumentEventContext) ctx).getSourceDocument();
+        if (doc != null && doc.isFolder()) {
+            String docId = doc.getId();
+            ClusterInvalidator.afterCompletion(() -> HierarchyCache.getInstance().invalidate(docId));
+        }
+    }
+
+}
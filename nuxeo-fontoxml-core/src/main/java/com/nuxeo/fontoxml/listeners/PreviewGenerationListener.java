@@ -0,0 +1,75 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package com.nuxeo.fontoxml.listeners;
+
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.BEFORE_DOC_UPDATE;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventContext;
+import org.nuxeo.ecm.core.event.EventListener;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+import org.nuxeo.runtime.api.Framework;
+
+import com.nuxeo.fontoxml.FontoXMLConfigDescriptor;
+import com.nuxeo.fontoxml.FontoXMLService;
+import com.nuxeo.fontoxml.work.PreviewGenerationWork;
+
+/**
+ * Schedules the calculation of the Fonto previews of a Picture once its views are (re)generated, which happens when
+ * it is created and every time its file:content changes. The thumbnail of a Picture comes from its views, so doing it
+ * before would cache the wrong image.
+ * <br/>
+ * Other kinds of assets are handled when their thumb:thumbnail is (re)calculated, which the thumbnail module does
+ * asynchronously, after the creation or the change of file:content: before that, there is nothing to cache.
+ *
+ * @since 10.10
+ */
+public class PreviewGenerationListener implements EventListener {
+
+    @Override
+    public void handleEvent(Event event) {
+
+        EventContext ctx = event.getContext();
+        if (!(ctx instanceof DocumentEventContext)) {
+            return;
+        }
+
+        FontoXMLConfigDescriptor config = Framework.getService(FontoXMLService.class).getConfiguration();
+        if (config == null || !config.isPreviewPregenerationEnabled()) {
+            return;
+        }
+
+        DocumentModel doc = ((DocumentEventContext) ctx).getSourceDocument();
+        if (doc == null || !doc.hasSchema("file")) {
+            return;
+        }
+
+        if (BEFORE_DOC_UPDATE.equals(event.getName())) {
+            if (doc.hasFacet("Picture") || !doc.hasSchema("thumbnail")
+                    || !doc.getProperty("thumb:thumbnail").isDirty()) {
+                return;
+            }
+        }
+
+        // Runs after the commit
+        PreviewGenerationWork.schedule(doc.getRepositoryName(), doc.getId());
+    }
+
+}
@@ -0,0 +1,321 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package com.nuxeo.fontoxml.servlet;
+
+import static com.nuxeo.fontoxml.servlet.Constants.VARIANT_THUMBNAIL;
+import static com.nuxeo.fontoxml.servlet.Constants.VARIANT_WEB;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.thumbnail.ThumbnailService;
+import org.nuxeo.ecm.platform.picture.api.ImageInfo;
+import org.nuxeo.ecm.platform.picture.api.ImagingService;
+import org.nuxeo.ecm.platform.picture.api.PictureView;
+import org.nuxeo.ecm.platform.picture.api.adapters.MultiviewPicture;
+import org.nuxeo.runtime.api.Framework;
+
+import com.nuxeo.fontoxml.FontoXMLConfigDescriptor;
+import com.nuxeo.fontoxml.FontoXMLService;
+import com.nuxeo.fontoxml.cache.PreviewCache;
+
+/**
+ * Calculates the previews of an asset, as expected by GET /asset/preview: "Thumbnail dimension being 128x128 pixels
+ * fixed size and web being 1024x1024 pixels maximum."
+ * <br/>
+ * Previews are cached (see {@link PreviewCache}) by the digest of file:content, the digest of the image the thumbnail
+ * is calculated from and the variant (see {@link #getCacheDigest(DocumentModel)}).
+ * <br/>
+ * When several requests ask for the same preview at the same time (several authors opening the same folder), only
+ * the first one calculates it, the others wait for its result. Resizing runs in a bounded pool, so the number of
+ * ImageMagick processes started by this node is capped (see the <code>preview</code> configuration).
+ *
+ * @since 10.10
+ */
+public class AssetPreview {
+
+    private static final Log log = LogFactory.getLog(AssetPreview.class);
+
+    public static final int THUMBNAIL_SIZE = 128;
+
+    public static final int WEB_MAX_SIZE = 1024;
+
+    // The view the ThumbnailService returns for a Picture
+    public static final String PICTURE_THUMBNAIL_VIEW = "Thumbnail";
+
+    // In seconds, when not configured
+    protected static final int DEFAULT_TIMEOUT = 60;
+
+    // Previews being calculated, by asset/variant/digest
+    protected static final ConcurrentHashMap<String, CompletableFuture<Blob>> inFlight = new ConcurrentHashMap<>();
+
+    protected static ExecutorService resizeExecutor = null;
+
+    private AssetPreview() {
+        // Static utilities only
+    }
+
+    /**
+     * Returns the preview from the cache, or calculates and caches it.
+     *
+     * @param session
+     * @param asset
+     * @param variant
+     * @return the preview, or null if there is no thumbnail for this asset
+     * @since 10.10
+     */
+    public static Blob getPreview(CoreSession session, DocumentModel asset, String variant) {
+
+        String digest = getCacheDigest(asset);
+        if (digest == null || !isKnownVariant(variant)) {
+            return computePreview(session, asset, variant);
+        }
+
+        PreviewCache cache = PreviewCache.getInstance();
+        Blob blob = cache.get(digest, variant);
+        if (blob != null) {
+            return blob;
+        }
+
+        String key = asset.getId() + "/" + variant + "/" + digest;
+        CompletableFuture<Blob> future = new CompletableFuture<>();
+        CompletableFuture<Blob> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            if (log.isDebugEnabled()) {
+                log.debug("Waiting for the preview " + key + " calculated by another request");
+            }
+            return waitFor(running);
+        }
+
+        try {
+            // Another request may have finished and cached it in the meantime
+            blob = cache.get(digest, variant);
+            if (blob == null) {
+                blob = computePreview(session, asset, variant);
+                if (blob != null) {
+                    blob = cache.put(digest, variant, blob);
+                }
+            }
+            future.complete(blob);
+            return blob;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * Calculates the preview: gets the thumbnail of the asset and resizes it, no cache involved.
+     *
+     * @param session
+     * @param asset
+     * @param variant
+     * @return the preview, or null if there is no thumbnail for this asset
+     * @since 10.10
+     */
+    public static Blob computePreview(CoreSession session, DocumentModel asset, String variant) {
+
+        Blob thumbnail = Framework.getService(ThumbnailService.class).getThumbnail(asset, session);
+        if (thumbnail == null) {
+            // We are screwed... Calculate a default one?
+            log.warn("Asset ID " + asset.getId() + " (" + asset.getTitle() + ") => cannot get a thumbnail");
+            return null;
+        }
+
+        // . . . RESIZE . . .
+        // (in the bounded pool, we just wait for it, not forever)
+        Future<Blob> resized = getResizeExecutor().submit(() -> resize(thumbnail, variant));
+        try {
+            return resized.get(getTimeout(), TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            resized.cancel(true);
+            throw new NuxeoException("Interrupted while resizing the preview of " + asset.getId(), e);
+        } catch (ExecutionException e) {
+            throw new NuxeoException("Failed to resize the preview of " + asset.getId(), e.getCause());
+        } catch (TimeoutException e) {
+            resized.cancel(true);
+            throw new NuxeoException("Timeout while resizing the preview of " + asset.getId(), e);
+        }
+    }
+
+    protected static Blob resize(Blob blob, String variant) {
+
+        ImagingService imagingService = Framework.getService(ImagingService.class);
+        ImageInfo imageInfo = imagingService.getImageInfo(blob);
+        if (log.isDebugEnabled()) {
+            log.debug("Thumbnail size: " + imageInfo.getWidth() + "x" + imageInfo.getHeight());
+        }
+        String thumbnailMimeType = blob.getMimeType();
+        switch (String.valueOf(variant)) {
+        case VARIANT_THUMBNAIL:
+            if (imageInfo.getWidth() != THUMBNAIL_SIZE || imageInfo.getHeight() != THUMBNAIL_SIZE) {
+                blob = imagingService.resize(blob, imageInfo.getFormat(), THUMBNAIL_SIZE, THUMBNAIL_SIZE, -1);
+                blob.setMimeType(thumbnailMimeType);
+            }
+            break;
+
+        case VARIANT_WEB:
+            if (imageInfo.getWidth() > WEB_MAX_SIZE || imageInfo.getHeight() > WEB_MAX_SIZE) {
+                blob = imagingService.resize(blob, imageInfo.getFormat(), WEB_MAX_SIZE, WEB_MAX_SIZE, -1);
+                blob.setMimeType(thumbnailMimeType);
+            }
+            break;
+
+        default:
+            log.warn("Unhandled variant: " + variant);
+            break;
+        }
+
+        return blob;
+    }
+
+    protected static Blob waitFor(CompletableFuture<Blob> future) {
+
+        try {
+            return future.get(getTimeout(), TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException("Interrupted while waiting for a preview", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new NuxeoException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new NuxeoException("Timeout while waiting for a preview calculated by another request", e);
+        }
+    }
+
+    /*
+     * In seconds
+     */
+    protected static int getTimeout() {
+
+        FontoXMLConfigDescriptor config = Framework.getService(FontoXMLService.class).getConfiguration();
+        int timeout = config == null ? 0 : config.getPreviewTimeout();
+        return timeout > 0 ? timeout : DEFAULT_TIMEOUT;
+    }
+
+    protected static synchronized ExecutorService getResizeExecutor() {
+
+        if (resizeExecutor == null) {
+            FontoXMLConfigDescriptor config = Framework.getService(FontoXMLService.class).getConfiguration();
+            int max = config == null ? 0 : config.getMaxConcurrentResizes();
+            if (max <= 0) {
+                max = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+            }
+            AtomicInteger count = new AtomicInteger();
+            resizeExecutor = Executors.newFixedThreadPool(max, r -> {
+                Thread t = new Thread(r, "fontoxml-preview-resize-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return resizeExecutor;
+    }
+
+    /**
+     * Stops the resize pool (called when the component stops). Previews being calculated are given a few seconds to
+     * finish.
+     *
+     * @since 10.10
+     */
+    public static synchronized void shutdown() throws InterruptedException {
+
+        if (resizeExecutor != null) {
+            resizeExecutor.shutdown();
+            if (!resizeExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+                resizeExecutor.shutdownNow();
+            }
+            resizeExecutor = null;
+        }
+    }
+
+    /**
+     * The digest of file:content. Null if the asset has no blob or its provider does not give a digest
+     *
+     * @param asset
+     * @return the digest or null
+     * @since 10.10
+     */
+    public static String getDigest(DocumentModel asset) {
+
+        if (!asset.hasSchema("file")) {
+            return null;
+        }
+        Blob blob = (Blob) asset.getPropertyValue("file:content");
+        return blob == null ? null : blob.getDigest();
+    }
+
+    /**
+     * The digest previews are cached with: the one of file:content plus the one of the image the thumbnail is
+     * calculated from (the "Thumbnail" view of a Picture, thumb:thumbnail for other documents).
+     * <br/>
+     * Null when this image does not exist (yet): the ThumbnailService then returns a placeholder (mime type icon,
+     * ...) which must not be cached, the real thumbnail is calculated asynchronously. Null also if a digest is
+     * missing (=> no cache)
+     *
+     * @param asset
+     * @return the digest or null
+     * @since 10.10
+     */
+    public static String getCacheDigest(DocumentModel asset) {
+
+        String digest = getDigest(asset);
+        String sourceDigest = getThumbnailSourceDigest(asset);
+        if (digest == null || sourceDigest == null) {
+            return null;
+        }
+        return digest + "-" + sourceDigest;
+    }
+
+    protected static String getThumbnailSourceDigest(DocumentModel asset) {
+
+        Blob source = null;
+        if (asset.hasFacet("Picture")) {
+            MultiviewPicture mvp = asset.getAdapter(MultiviewPicture.class);
+            PictureView view = mvp == null ? null : mvp.getView(PICTURE_THUMBNAIL_VIEW);
+            source = view == null ? null : view.getBlob();
+        } else if (asset.hasSchema("thumbnail")) {
+            source = (Blob) asset.getPropertyValue("thumb:thumbnail");
+        }
+        return source == null ? null : source.getDigest();
+    }
+
+    public static boolean isKnownVariant(String variant) {
+        return VARIANT_THUMBNAIL.equals(variant) || VARIANT_WEB.equals(variant);
+    }
+
+}
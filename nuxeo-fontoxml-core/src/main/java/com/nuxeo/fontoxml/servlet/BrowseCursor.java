@@ -0,0 +1,123 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package com.nuxeo.fontoxml.servlet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.nuxeo.ecm.core.query.sql.NXQL;
+
+/**
+ * The position of a page in a POST /browse made with a cursor: the title and id of the last item sent (the results
+ * are ordered by title, then id), plus the total count calculated with the first page.
+ * <br/>
+ * Items without a title are sent after all the others (ordered by id), so the pagination does not depend on where the
+ * database sorts null values.
+ * <br/>
+ * It is sent to the client as an opaque string (base64 of a small JSON object).
+ *
+ * @since 10.10
+ */
+public class BrowseCursor {
+
+    protected final String title;
+
+    protected final String id;
+
+    protected final boolean inUntitled;
+
+    protected final long totalCount;
+
+    public BrowseCursor(String title, String id, long totalCount) {
+        this.title = title;
+        this.id = id;
+        this.inUntitled = title == null;
+        this.totalCount = totalCount;
+    }
+
+    /**
+     * @param cursor the value sent by the client
+     * @return the cursor, null if empty (first page)
+     * @throws IllegalArgumentException if the value is not a cursor
+     * @since 10.10
+     */
+    public static BrowseCursor decode(String cursor) {
+
+        if (StringUtils.isBlank(cursor)) {
+            return null;
+        }
+
+        try {
+            String json = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            JSONObject obj = new JSONObject(json);
+            return new BrowseCursor(obj.has("t") ? obj.getString("t") : null, obj.getString("u"), obj.getLong("c"));
+        } catch (IllegalArgumentException | JSONException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor, e);
+        }
+    }
+
+    public String encode() {
+
+        JSONObject obj = new JSONObject();
+        try {
+            if (title != null) {
+                obj.put("t", title);
+            }
+            obj.put("u", id);
+            obj.put("c", totalCount);
+        } catch (JSONException e) {
+            // Can't happen with these values
+            throw new IllegalStateException(e);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(obj.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return true if the titled items were all sent
+     */
+    public boolean isInUntitled() {
+        return inUntitled;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * @return the NXQL predicate selecting the titled items after this cursor
+     */
+    public String getTitledPredicate() {
+
+        String t = NXQL.escapeString(title);
+        return "(dc:title > " + t + " OR (dc:title = " + t + " AND " + NXQL.ECM_UUID + " > " + NXQL.escapeString(id)
+                + "))";
+    }
+
+    /**
+     * @return the NXQL predicate selecting the untitled items after this cursor
+     */
+    public String getUntitledPredicate() {
+
+        return NXQL.ECM_UUID + " > " + NXQL.escapeString(id);
+    }
+
+}
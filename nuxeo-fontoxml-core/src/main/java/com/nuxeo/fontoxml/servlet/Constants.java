@@ -39,6 +39,9 @@ public class Constants {
 
     public static final String EVENT_CONTEXT_IS_AUTOSAVE = "isFontoAutoSave";
 
+    // Digest of the saved blob
+    public static final String EVENT_CONTEXT_DIGEST = "fontoDigest";
+
     // ========================================> FONTO END POINTS
     public static final String PATH_DOCUMENT = "/document";
 
@@ -54,6 +57,28 @@ public class Constants {
 
     public static final String PATH_ASSET_PREVIEW = "/asset/preview";
 
+    // ========================================> HTTP HEADERS
+    public static final String HEADER_ETAG = "ETag";
+
+    public static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+
+    public static final String HEADER_CACHE_CONTROL = "Cache-Control";
+
+    public static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+
+    public static final String HEADER_RANGE = "Range";
+
+    public static final String HEADER_IF_RANGE = "If-Range";
+
+    public static final String HEADER_CONTENT_RANGE = "Content-Range";
+
+    public static final String HEADER_LAST_MODIFIED = "Last-Modified";
+
+    public static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    // Previews that will change without the asset being modified (placeholders)
+    public static final String NO_STORE_CACHE_CONTROL = "private, no-store";
+
     // ========================================> FONTO PROPERTIES/PARAMETERS/...
     public static final String PARAM_CONTEXT = "context";
 
@@ -65,8 +90,18 @@ public class Constants {
 
     public static final String PARAM_BODY = "body";
 
+    public static final String PARAM_STATUS = "status";
+
+    public static final String PARAM_INCLUDE_ADDITIONAL_DOCUMENTS = "includeAdditionalDocuments";
+
+    public static final String PARAM_ADDITIONAL_DOCUMENTS = "additionalDocuments";
+
     public static final String PARAM_VARIANT = "variant";
 
+    // Optional, not sent by Fonto: the digest of the asset when the URL is built by an integration. The response is
+    // then marked immutable
+    public static final String PARAM_DIGEST = "digest";
+
     public static final String PARAM_CONTENT = "content";
 
     public static final String PARAM_LOCK = "lock";
@@ -99,6 +134,18 @@ public class Constants {
 
     public static final String PARAM_LABEL = "label";
 
+    // POST /browse, keyset pagination (see BrowseCursor)
+    public static final String PARAM_CURSOR = "cursor";
+
+    public static final String PARAM_NEXT_CURSOR = "nextCursor";
+
+    // PUT /document, patch instead of the whole content (see DocumentPatch)
+    public static final String PARAM_PATCH = "patch";
+
+    public static final String PARAM_BASE_DIGEST = "baseDigest";
+
+    public static final String PARAM_DELTAS = "deltas";
+
     public static final String VARIANT_THUMBNAIL = "thumbnail";
 
     public static final String VARIANT_WEB = "web";
@@ -155,6 +202,9 @@ public class Constants {
     public static final List<String> FONTO_OUTPUTSUPPORT_FILE_EXTENSIONS = Arrays.asList(FONTO_FILE_EXT_CSS,
             FONTO_FILE_EXT_HEADERFOOTER);
 
+    // Max. number of documents referenced by the main one and sent in the same GET /document
+    public static final int MAX_ADDITIONAL_DOCUMENTS = 500;
+
     // ========================================> CUSTOM INFO SEND (in context, mainly)
     public static final String DOC_UUID = "uuid";
 
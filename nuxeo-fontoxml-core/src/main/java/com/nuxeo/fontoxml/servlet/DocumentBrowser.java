@@ -23,13 +23,28 @@ import javax.servlet.http.HttpServletResponse;
 
 import static com.nuxeo.fontoxml.servlet.Constants.*;
 
+import java.io.FilterWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.Serializable;
-import java.time.LocalTime;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
@@ -40,28 +55,45 @@ import org.apache.commons.logging.LogFactory;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.CloseableCoreSession;
 import org.nuxeo.ecm.core.api.CoreInstance;
 import org.nuxeo.ecm.core.api.CoreSession;
-import org.nuxeo.ecm.core.api.DocumentModel;
-import org.nuxeo.ecm.core.api.DocumentModelList;
-import org.nuxeo.ecm.core.api.PathRef;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.IterableQueryResult;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.PartialList;
+import org.nuxeo.ecm.core.query.sql.NXQL;
+import org.nuxeo.ecm.core.schema.DocumentType;
+import org.nuxeo.ecm.core.schema.FacetNames;
+import org.nuxeo.ecm.core.schema.SchemaManager;
 import org.nuxeo.ecm.platform.tag.TagService;
 import org.nuxeo.runtime.api.Framework;
 
+import com.nuxeo.fontoxml.FontoXMLClassifier;
+import com.nuxeo.fontoxml.FontoXMLConfigDescriptor;
+import com.nuxeo.fontoxml.FontoXMLService;
+import com.nuxeo.fontoxml.cache.BrowseCache;
+import com.nuxeo.fontoxml.cache.ContainerCache;
+import com.nuxeo.fontoxml.cache.HierarchyCache;
+
 /**
  * A class that encapsulates the handling of a POST /browse from Fonto XML
  * (https://documentation.fontoxml.com/editor/latest/browse-for-documents-and-assets-30015560.html)
  * <br/>
  * ******************** WARNINGS ********************
- * - WE DO NOT HANDLE PAGINATION IN THIS POC
  * - WE ASSUME THE CURRENT USER CAN READ ROOT AND ALL
  * - WE ASSUME AN XML ALWAYS HAS THE "text/xml" mime-type
  * - WE ONLY HANDLE File, Picture, Audio and Video (and "Folderish")
  * - FROM FONT STANDPOINT, WE DON'T HANDLE ALL ASSET TYPES (not "document-template", or "link" for example)
  * **************************************************
- * Also, we do not handle the "sort" optional parameter, always order by title.
+ * Also, we do not handle the "sort" optional parameter, always order by title (then id, so pages are stable).
+ * <br/>
+ * The optional "query" object (fulltext, title prefix, tags) turns the browse into a search in the subtree of the
+ * folder, see buildSearchPredicate.
+ * <br/>
+ * Besides limit/offset, the request can have a "cursor" (empty for the first page). The response then has a
+ * "nextCursor" to send for the next page (null after the last one), and the page is selected with a keyset predicate
+ * instead of an offset, so the last pages of a big folder are as fast as the first one (see BrowseCursor).
  * 
  * @since 10.10
  */
@@ -97,12 +129,55 @@ public class DocumentBrowser {
 
     protected int offset;
 
+    // null => offset pagination
+    protected String cursor;
+
     protected String currentDocId;
 
     protected static TagService tagService = null;
 
+    protected static ForkJoinPool itemsPool = null;
+
+    // Number of items built in parallel before being written
+    protected static final int PARALLEL_CHUNK_SIZE = 500;
+
     public static final int ALL_RESULTS = -1;
 
+    protected static final String COL_FILE_NAME = "file:content/name";
+
+    protected static final String COL_FILE_MIME_TYPE = "file:content/mime-type";
+
+    protected static final String COL_FILE_LENGTH = "file:content/length";
+
+    protected static final String COL_PICTURE_WIDTH = "picture:info/width";
+
+    protected static final String COL_PICTURE_HEIGHT = "picture:info/height";
+
+    protected static final String COL_VIDEO_WIDTH = "vid:info/width";
+
+    protected static final String COL_VIDEO_HEIGHT = "vid:info/height";
+
+    protected static final String COL_VIDEO_DURATION = "vid:info/duration";
+
+    protected static final String COL_MAJOR_VERSION = "uid:major_version";
+
+    protected static final String COL_MINOR_VERSION = "uid:minor_version";
+
+    protected static final String COL_TAGS = "nxtag:tags";
+
+    protected static final String COL_TAG_LABEL = "nxtag:tags/*1/label";
+
+    protected static final String COL_FONTO_KIND = FontoXMLClassifier.XPATH_KIND;
+
+    protected static final String COL_FONTO_DIMENSION = FontoXMLClassifier.XPATH_DIMENSION;
+
+    protected static final String COL_FONTO_DURATION = FontoXMLClassifier.XPATH_DURATION;
+
+    protected static final List<String> BASE_COLUMNS = Arrays.asList(NXQL.ECM_UUID, NXQL.ECM_PARENTID,
+            NXQL.ECM_PRIMARYTYPE, NXQL.ECM_LIFECYCLESTATE, "dc:title", "dc:description", "dc:created",
+            "dc:modified", COL_FILE_NAME, COL_FILE_MIME_TYPE, COL_FILE_LENGTH, COL_FONTO_KIND, COL_FONTO_DIMENSION,
+            COL_FONTO_DURATION);
+
     public DocumentBrowser(HttpServletRequest req, HttpServletResponse response) throws JSONException, IOException {
 
         String bodyStr = IOUtils.toString(req.getReader());
@@ -119,6 +194,9 @@ public class DocumentBrowser {
         query = body.optJSONObject("query");
         limit = body.optInt("limit", ALL_RESULTS);
         offset = body.optInt("offset", 0);
+        if (body.has(PARAM_CURSOR)) {
+            cursor = body.isNull(PARAM_CURSOR) ? "" : body.getString(PARAM_CURSOR);
+        }
 
         // Doc ID is optional in this call. From Fonto doc, it could be used when folderId to start the search from the
         // current document's container.
@@ -130,41 +208,18 @@ public class DocumentBrowser {
     }
 
     /*
-     * IMPORTANT
-     * The query should have pre-filter Folder/Picture/...
-     * We do it here in this POC.
+     * The query returns exactly the documents Fonto asked for (see buildNXQL), so the database does the filtering, the
+     * pagination and the count.
      */
     public void browse() throws JSONException, IOException {
 
-        // This POC does not handle pagination
-        if (limit != ALL_RESULTS || offset > 0) {
-            log.warn(
-                    "This Nuxeo-FontoXML POC does not handle paginaiton when browsing the repository from Fonto (limit: "
-                            + limit + ", offset: " + offset + ")");
-        }
-
         // Query
         try (CloseableCoreSession session = CoreInstance.openCoreSession(null)) {
 
-            String nxql = buildNXQL(session);
-
-            if (log.isInfoEnabled()) {
-                String msg = "AssetTypes: " + assetTypes.toString();
-                msg += "\nresultTypes: " + resultTypes.toString();
-                msg += "NXQL:\n" + nxql;
-                log.info(msg);
-            }
-
-            // For quick search of the type that is wanted
-            // The query should have already return only the types of documents we want
-            ArrayList<String> assetTypesList = new ArrayList<String>();
-            for (int i = 0; i < assetTypes.length(); i++) {
-                assetTypesList.add(assetTypes.getString(i));
-            }
-            boolean hasFontoFileAssetType = assetTypesList.contains(FONTO_TYPE_FILE);
             // ======================================== <Just for the POC context>
             String infoMsg = "";
-            for (String assetType : assetTypesList) {
+            for (int i = 0; i < assetTypes.length(); i++) {
+                String assetType = assetTypes.getString(i);
                 switch (assetType) {
                 case FONTO_TYPE_DOCUMENT:
                 case FONTO_TYPE_FOLDER:
@@ -172,7 +227,8 @@ public class DocumentBrowser {
                 case FONTO_TYPE_IMAGE:
                 case FONTO_TYPE_AUDIO:
                 case FONTO_TYPE_VIDEO:
-                    // OK. We handle these (see below)
+                case FONTO_TYPE_OUTPUT_SUPPORT:
+                    // OK. We handle these (see buildNXQL)
                     break;
 
                 default:
@@ -185,211 +241,751 @@ public class DocumentBrowser {
             }
             // ======================================== </Just for the POC context>
 
-            DocumentModelList docs = session.query(nxql);
-
-            JSONObject results = new JSONObject();
-            int totalCount = docs.size();
-            JSONArray items = new JSONArray();
-            for (DocumentModel oneDoc : docs) {
-                // See above. Once the search will have secure the result, this will not not be required.
-                boolean gotOne = false;
-                JSONObject item = new JSONObject();
-                // Assumes that if we have a Folderish, it was OK to query it.
-                if (oneDoc.hasFacet("Folderish")) {
-                    gotOne = true;
-
-                    item.put(PARAM_ID, oneDoc.getId());
-                    item.put(PARAM_LABEL, oneDoc.getTitle());
-                    item.put(PARAM_TYPE, FONTO_TYPE_FOLDER);
-                    // No metadata in there
-                    // Could be icon, isDisabled, description (only for document-template) and properties (object, only
-                    // for images)
-                } else if (oneDoc.hasSchema("file")) {// We don't add it to the result if it has no blob
-
-                    // Something more efficient should be implemented, like a specific doctype or a field that quickly
-                    // identify the oneDoc as XML, etc.
-                    Blob blob = (Blob) oneDoc.getPropertyValue("file:content");
-                    if (blob != null) {
-                        JSONObject metadata = null;
-                        JSONObject properties = null;
-                        // This is where configuration would allow for handling different type of document (and custom
-                        // document types)
-
-                        // Logic per document type
-                        switch (oneDoc.getType()) {
-                        case "File":
-                            if (assetTypesList.contains(FONTO_TYPE_FILE)) {
-                                gotOne = true;
-                            } else if (assetTypesList.contains(FONTO_TYPE_DOCUMENT)) {
-                                // Fonto 4 Business doc: "The results must be filtered to only return documents that can
-                                // be previewed with the ​GET /document​ endpoint"
-                                if (Utilities.isOkForFontoGETDocument(blob)) {
-                                    gotOne = true;
-                                }
-                            } else if (assetTypesList.contains(FONTO_TYPE_OUTPUT_SUPPORT)) {
-                                // Fonto 4 Business doc: "This is a browse request for files that are used during the
-                                // construction of an output file. The CMS must filter on *.css and *.hf.html files."
-                                if (Utilities.isOkForFontoPOSTBrowseOutputSupport(blob)) {
-                                    gotOne = true;
-                                }
-                            }
-                            break;
-
-                        case "Picture":
-                            if (assetTypesList.contains(FONTO_TYPE_IMAGE) || hasFontoFileAssetType) {
-                                gotOne = true;
-
-                                properties = new JSONObject();
-                                @SuppressWarnings("unchecked")
-                                Map<String, Serializable> pictInfo = (Map<String, Serializable>) oneDoc.getPropertyValue(
-                                        "picture:info");
-                                // properties.put("width", pictInfo.get("width"));
-                                // properties.put("height", pictInfo.get("height"));
-                                properties.put("dimension", pictInfo.get("width") + "x" + pictInfo.get("height"));
-                            }
-                            break;
-
-                        // . . . other logic for other types of documents . . .
-                        case "Video":
-                            if (assetTypesList.contains(FONTO_TYPE_VIDEO) || hasFontoFileAssetType) {
-                                gotOne = true;
-
-                                properties = new JSONObject();
-                                @SuppressWarnings("unchecked")
-                                Map<String, Serializable> videoInfo = (Map<String, Serializable>) oneDoc.getPropertyValue(
-                                        "vid:info");
-                                // properties.put("width", videoInfo.get("width"));
-                                // properties.put("height", videoInfo.get("height"));
-                                properties.put("dimension", videoInfo.get("width") + "x" + videoInfo.get("height"));
-                                Double duration = (Double) videoInfo.get("duration");
-                                // Hopping the duration is less than 24 hours :-)
-                                if (duration != null) {
-                                    LocalTime d = LocalTime.ofSecondOfDay(duration.longValue());
-                                    StringBuilder buf = new StringBuilder(9);
-                                    int h = d.getHour();
-                                    int m = d.getMinute();
-                                    int s = d.getSecond();
-                                    buf.append(h < 10 ? "0h" : "h")
-                                       .append(h)
-                                       .append(m < 10 ? "0m" : "m")
-                                       .append(m)
-                                       .append(s < 10 ? "0s" : "s")
-                                       .append(s);
-                                    properties.put("duration", buf.toString());
-                                }
-                            }
-
-                            break;
-
-                        case "Audio":
-                            if (assetTypesList.contains(FONTO_TYPE_AUDIO) || hasFontoFileAssetType) {
-                                gotOne = true;
-                                // . . .
-                            }
-                            break;
-                        }
-
-                        if (gotOne) {
-                            // Common to all documents
-                            item.put(PARAM_ID, oneDoc.getId());
-                            item.put(PARAM_LABEL, oneDoc.getTitle());
-                            item.put(PARAM_TYPE, FontoXMLServlet.getFontoType(oneDoc));
-
-                            // More info to the metadata/properties field
-                            metadata = new JSONObject();
-                            if (properties == null) {
-                                properties = new JSONObject();
-                            }
-                            properties.put("version", oneDoc.getVersionLabel());
-                            properties.put("state", oneDoc.getCurrentLifeCycleState());
-                            Calendar aDate = (Calendar) oneDoc.getPropertyValue("created");
-                            properties.put("created", FORMATTER.format(aDate));
-                            aDate = (Calendar) oneDoc.getPropertyValue("dc:modified");
-                            properties.put("modified", FORMATTER.format(aDate));
-                            Set<String> tags = tagService.getTags(session, oneDoc.getId());
-                            if (tags != null && tags.size() > 0) {
-                                properties.put("tags", String.join(",", tags));
-                            }
-                            properties.put("fileSize", FileUtils.byteCountToDisplaySize(blob.getLength()));
-                            String description = (String) oneDoc.getPropertyValue("dc:description");
-                            if (StringUtils.isNotBlank(description)) {
-                                properties.put("description", description);
-                            }
-
-                            metadata.put(PARAM_PROPERTIES, properties);
-                            
-                            // F4B
-                            JSONArray hierarchy = Utilities.buildHierarchy(oneDoc);
-                            metadata.put(PARAM_HIERARCHY, hierarchy);
-                            
-                            item.put(PARAM_METADATA, metadata);
-
-                        } else {
-                            totalCount -= 1;
-                        }
-                    } else {
-                        totalCount -= 1;
-                    }
-                } // if (Folderish)...else
-
-                if (gotOne) {
-                    items.put(item);
+            String nxql = buildNXQL(session);
+
+            if (log.isInfoEnabled()) {
+                String msg = "AssetTypes: " + assetTypes.toString();
+                msg += "\nresultTypes: " + resultTypes.toString();
+                msg += "\nlimit: " + limit + ", offset: " + offset + "\n";
+                msg += "NXQL:\n" + nxql;
+                log.info(msg);
+            }
+
+            if (nxql == null) {
+                // Nothing we handle was asked
+                JSONObject results = new JSONObject();
+                results.put("totalItemCount", 0);
+                results.put("items", new JSONArray());
+                ServletUtils.sendStringResponse(response, HttpServletResponse.SC_OK, results.toString());
+                return;
+            }
+
+            // Pagination is done by the database, we only load the documents of the page (0 => no limit)
+            // Only the values we send are fetched, no DocumentModel is loaded.
+            long queryLimit = limit == ALL_RESULTS ? 0 : Math.max(limit, 0);
+            long queryOffset = Math.max(offset, 0);
+
+            BrowseCursor browseCursor = null;
+            if (cursor != null) {
+                try {
+                    browseCursor = BrowseCursor.decode(cursor);
+                } catch (IllegalArgumentException e) {
+                    response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                    return;
                 }
             }
 
-            results.put("totalItemCount", totalCount);
-            results.put("items", items);
-            log.info("Results sent to Fonto:\n" + results.toString(2));
+            // Same page already sent to a user with the same permissions?
+            // (Searches are not cached: they cover the whole subtree and the fulltext index is updated
+            // asynchronously)
+            BrowseCache cache = BrowseCache.getInstance();
+            boolean useCache = cache.isEnabled() && !isSearch();
+            String cacheKey = null;
+            long cacheGeneration = 0;
+            if (useCache) {
+                String page = cursor == null ? Long.toString(queryOffset) : "cursor:" + cursor;
+                cacheKey = cache.getKey(session, getParentId(session), queryLimit + "/" + page + "/" + nxql);
+                String cached = cache.get(cacheKey);
+                if (cached != null) {
+                    log.debug("Results sent to Fonto from the cache");
+                    ServletUtils.sendStringResponse(response, HttpServletResponse.SC_OK, cached);
+                    return;
+                }
+                cacheGeneration = cache.getGeneration();
+            }
 
-            ServletUtils.sendStringResponse(response, HttpServletResponse.SC_OK, results.toString());
+            List<Map<String, Serializable>> rows;
+            long totalItemCount;
+            String nextCursor = null;
+            if (cursor == null) {
+                PartialList<Map<String, Serializable>> list = session.queryProjection(nxql, queryLimit, queryOffset,
+                        true);
+                rows = list;
+                totalItemCount = list.totalSize();
+            } else {
+                rows = queryAfterCursor(session, browseCursor, queryLimit);
+                totalItemCount = browseCursor == null ? session.queryProjection(nxql, 1, 0, true).totalSize()
+                        : browseCursor.getTotalCount();
+                if (queryLimit > 0 && rows.size() == queryLimit) {
+                    Map<String, Serializable> last = rows.get(rows.size() - 1);
+                    nextCursor = new BrowseCursor((String) last.get("dc:title"), (String) last.get(NXQL.ECM_UUID),
+                            totalItemCount).encode();
+                }
+            }
+
+            // Tags of the whole page in one query, ancestors from the HierarchyCache. Once we have them, building the
+            // items does not need the session anymore (and can be done in parallel)
+            Map<String, Set<String>> tagsByDoc = fetchTags(session, rows);
+            Map<String, List<HierarchyCache.Ancestor>> ancestorsByParent = fetchAncestors(session, rows);
+
+            // Each item is written as soon as it is built, the page is never held in memory as a whole (except for
+            // the copy kept by the cache, if not too big)
+            ServletUtils.setJSONResponseHeaders(response, HttpServletResponse.SC_OK);
+            Writer out = new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8);
+            CopyingWriter copy = null;
+            if (useCache) {
+                copy = new CopyingWriter(out, BrowseCache.MAX_CACHED_PAGE_LENGTH);
+                out = copy;
+            }
+            try (JSONStreamWriter writer = new JSONStreamWriter(out)) {
+                writer.beginObject();
+                writer.name("totalItemCount").value(totalItemCount);
+                if (cursor != null) {
+                    writer.name(PARAM_NEXT_CURSOR).value(nextCursor);
+                }
+                writer.name("items").beginArray();
+                writeItems(writer, rows, tagsByDoc, ancestorsByParent);
+                writer.endArray();
+                writer.endObject();
+            }
+
+            if (copy != null && copy.isComplete()) {
+                cache.put(cacheKey, copy.toString(), cacheGeneration);
+            }
         } // CloseableCoreSession
     }
 
     /*
-     * Maybe we should be a "real" query, not using String I mean.
-     * -
-     * We don't really handle assetTypes. But the final product should handle
-     * both assetTypes and resultTypes.
-     * -
-     * TODO Tune the way the expected doc types are handled.
-     * Here, we ignore whatever is not File, Picture, Audio, Video (or Folderish)...
+     * Builds and writes the items, in the order of the query. Big pages are built in parallel, by chunks, so we still
+     * start sending before the whole page is built.
      */
-    protected String buildNXQL(CoreSession session) throws JSONException {
+    protected void writeItems(JSONStreamWriter writer, List<Map<String, Serializable>> rows,
+            Map<String, Set<String>> tagsByDoc, Map<String, List<HierarchyCache.Ancestor>> ancestorsByParent)
+            throws IOException, JSONException {
 
-        String nxql = "SELECT * FROM DOCUMENT WHERE ecm:isTrashed = 0 AND ecm:isVersion = 0 AND ecm:isProxy = 0 AND ecm:mixinType != 'HiddenInNavigation'";
+        FontoXMLConfigDescriptor config = Framework.getService(FontoXMLService.class).getConfiguration();
+        int threshold = config == null ? 0 : config.getBrowseParallelThreshold();
 
-        // Cf. Fonto API doc. resultTypes can be file, folder or both
-        // So, either we want only Folderish, or we want anything
-        if (resultTypes.length() == 1) {
-            String type = resultTypes.getString(0);
-            switch (type) {
-            case FONTO_TYPE_FOLDER:
-                nxql += " AND ecm:mixinType = 'Folderish'";
+        if (threshold <= 0 || rows.size() < threshold) {
+            for (Map<String, Serializable> row : rows) {
+                writeItem(writer, buildItem(row, tagsByDoc, ancestorsByParent));
+            }
+            return;
+        }
+
+        for (int start = 0; start < rows.size(); start += PARALLEL_CHUNK_SIZE) {
+            List<Map<String, Serializable>> chunk = rows.subList(start,
+                    Math.min(start + PARALLEL_CHUNK_SIZE, rows.size()));
+            ForkJoinTask<List<JSONObject>> task = getItemsPool().submit(
+                    () -> buildItems(chunk, tagsByDoc, ancestorsByParent));
+            for (JSONObject item : waitFor(task)) {
+                writeItem(writer, item);
+            }
+        }
+    }
+
+    /*
+     * Called in the items pool: the parallel stream runs in this pool, and keeps the order when collected to a list
+     */
+    protected List<JSONObject> buildItems(List<Map<String, Serializable>> rows, Map<String, Set<String>> tagsByDoc,
+            Map<String, List<HierarchyCache.Ancestor>> ancestorsByParent) {
+
+        return rows.parallelStream()
+                   .map(row -> buildItemUnchecked(row, tagsByDoc, ancestorsByParent))
+                   .collect(Collectors.toList());
+    }
+
+    protected void writeItem(JSONStreamWriter writer, JSONObject item) throws IOException, JSONException {
+
+        if (log.isDebugEnabled()) {
+            log.debug("Item sent to Fonto:\n" + item.toString(2));
+        }
+        writer.value(item);
+    }
+
+    protected JSONObject buildItemUnchecked(Map<String, Serializable> row, Map<String, Set<String>> tagsByDoc,
+            Map<String, List<HierarchyCache.Ancestor>> ancestorsByParent) {
+
+        try {
+            return buildItem(row, tagsByDoc, ancestorsByParent);
+        } catch (JSONException e) {
+            throw new NuxeoException("Failed to build the item of " + row.get(NXQL.ECM_UUID), e);
+        }
+    }
+
+    protected static List<JSONObject> waitFor(ForkJoinTask<List<JSONObject>> task) {
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            task.cancel(true);
+            throw new NuxeoException("Interrupted while building the browse items", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new NuxeoException(e.getCause());
+        }
+    }
+
+    /*
+     * Shared by all the requests, so the number of threads building items is bounded
+     */
+    protected static synchronized ForkJoinPool getItemsPool() {
+
+        if (itemsPool == null) {
+            FontoXMLConfigDescriptor config = Framework.getService(FontoXMLService.class).getConfiguration();
+            int parallelism = config == null ? 0 : config.getBrowseParallelism();
+            if (parallelism <= 0) {
+                parallelism = Runtime.getRuntime().availableProcessors();
+            }
+            AtomicInteger count = new AtomicInteger();
+            itemsPool = new ForkJoinPool(parallelism, pool -> {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                t.setName("fontoxml-browse-" + count.incrementAndGet());
+                return t;
+            }, null, false);
+        }
+        return itemsPool;
+    }
+
+    /**
+     * Stops the pool building the browse items (called when the component stops)
+     *
+     * @since 10.10
+     */
+    public static synchronized void shutdown() throws InterruptedException {
+
+        if (itemsPool != null) {
+            itemsPool.shutdown();
+            if (!itemsPool.awaitTermination(5, TimeUnit.SECONDS)) {
+                itemsPool.shutdownNow();
+            }
+            itemsPool = null;
+        }
+    }
+
+    /*
+     * Builds the JSON item expected by Fonto from the projected values. Everything it needs was fetched before (see
+     * browse()), it does not use the session.
+     */
+    protected JSONObject buildItem(Map<String, Serializable> row, Map<String, Set<String>> tagsByDoc,
+            Map<String, List<HierarchyCache.Ancestor>> ancestorsByParent) throws JSONException {
+
+        String docId = (String) row.get(NXQL.ECM_UUID);
+        String title = (String) row.get("dc:title");
+        String primaryType = (String) row.get(NXQL.ECM_PRIMARYTYPE);
+
+        JSONObject item = new JSONObject();
+        item.put(PARAM_ID, docId);
+        item.put(PARAM_LABEL, title);
+
+        if (isFolderish(primaryType)) {
+            item.put(PARAM_TYPE, FONTO_TYPE_FOLDER);
+            // No metadata in there
+            // Could be icon, isDisabled, description (only for document-template) and properties (object, only
+            // for images)
+            return item;
+        }
+
+        String mimeType = (String) row.get(COL_FILE_MIME_TYPE);
+        Long length = (Long) row.get(COL_FILE_LENGTH);
+        String kind = (String) row.get(COL_FONTO_KIND);
+
+        JSONObject properties = new JSONObject();
+        if (kind != null) {
+            // Calculated when the document was saved (see FontoXMLClassifier)
+            item.put(PARAM_TYPE, FontoXMLClassifier.toFontoType(kind));
+            putIfNotNull(properties, "dimension", row.get(COL_FONTO_DIMENSION));
+            putIfNotNull(properties, "duration", row.get(COL_FONTO_DURATION));
+        } else {
+            // Not classified yet (created before the schema was deployed)
+            item.put(PARAM_TYPE,
+                    FontoXMLServlet.getFontoType(primaryType, false, mimeType, (String) row.get(COL_FILE_NAME)));
+
+            // This is where configuration would allow for handling different type of document (and custom
+            // document types)
+            switch (primaryType) {
+            case "Picture":
+                properties.put("dimension", row.get(COL_PICTURE_WIDTH) + "x" + row.get(COL_PICTURE_HEIGHT));
                 break;
 
-            case FONTO_TYPE_FILE:
-                nxql += " AND ecm:mixinType != 'Folderish'";
+            // . . . other logic for other types of documents . . .
+            case "Video":
+                properties.put("dimension", row.get(COL_VIDEO_WIDTH) + "x" + row.get(COL_VIDEO_HEIGHT));
+                Number duration = (Number) row.get(COL_VIDEO_DURATION);
+                if (duration != null) {
+                    properties.put("duration", Utilities.formatDuration(duration.longValue()));
+                }
                 break;
             }
         }
 
-        // Where to start?
-        if (StringUtils.isNotBlank(folderId)) {
-            nxql += " AND ecm:parentId = '" + folderId + "'";
+        // Common to all documents
+        properties.put("version", getVersionLabel(row));
+        properties.put("state", row.get(NXQL.ECM_LIFECYCLESTATE));
+        Calendar aDate = (Calendar) row.get("dc:created");
+        properties.put("created", aDate == null ? null : FORMATTER.format(aDate));
+        aDate = (Calendar) row.get("dc:modified");
+        properties.put("modified", aDate == null ? null : FORMATTER.format(aDate));
+        Set<String> tags = tagsByDoc.get(docId);
+        if (tags != null && tags.size() > 0) {
+            properties.put("tags", String.join(",", tags));
+        }
+        properties.put("fileSize", FileUtils.byteCountToDisplaySize(length == null ? 0 : length));
+        String description = (String) row.get("dc:description");
+        if (StringUtils.isNotBlank(description)) {
+            properties.put("description", description);
+        }
+
+        JSONObject metadata = new JSONObject();
+        metadata.put(PARAM_PROPERTIES, properties);
+
+        // F4B
+        List<HierarchyCache.Ancestor> ancestors = ancestorsByParent.get((String) row.get(NXQL.ECM_PARENTID));
+        JSONArray hierarchy = Utilities.buildHierarchy(ancestors == null ? Collections.emptyList() : ancestors, docId,
+                title, false);
+        metadata.put(PARAM_HIERARCHY, hierarchy);
+
+        item.put(PARAM_METADATA, metadata);
+
+        return item;
+    }
+
+    /*
+     * The assetTypes and resultTypes sent by Fonto are turned into predicates, so the database only returns what is
+     * expected (and pagination and totalItemCount are correct):
+     * - resultTypes: folder and/or file
+     * - assetTypes:
+     *   - file: any File, Picture, Video or Audio with a blob
+     *   - document: a File that can be fetched with GET /document (see Utilities#isOkForFontoGETDocument)
+     *   - output-support: a File with a .css or .hf.html text blob (see
+     *     Utilities#isOkForFontoPOSTBrowseOutputSupport)
+     *   - image, video, audio: Picture, Video, Audio with a blob
+     * -
+     * Returns null if nothing can match (no need to query)
+     */
+    protected String buildNXQL(CoreSession session) throws JSONException {
+
+        return buildNXQL(session, null);
+    }
+
+    /*
+     * Same as buildNXQL(session), with an additional predicate (used for keyset pagination)
+     */
+    protected String buildNXQL(CoreSession session, String additionalPredicate) throws JSONException {
+
+        // Cf. Fonto API doc. resultTypes can be file, folder or both
+        List<String> resultTypesList = toList(resultTypes);
+        boolean onlyOneType = resultTypesList.size() == 1;
+        boolean wantFolders = !onlyOneType || resultTypesList.contains(FONTO_TYPE_FOLDER);
+        boolean wantFiles = !onlyOneType || resultTypesList.contains(FONTO_TYPE_FILE);
+
+        List<String> predicates = new ArrayList<>();
+        if (wantFolders) {
+            predicates.add("ecm:mixinType = 'Folderish'");
+        }
+        if (wantFiles) {
+            String assetsPredicate = buildAssetTypesPredicate(toList(assetTypes));
+            if (assetsPredicate != null) {
+                predicates.add("(ecm:mixinType != 'Folderish' AND " + COL_FILE_LENGTH + " IS NOT NULL AND "
+                        + assetsPredicate + ")");
+            }
+        }
+        if (predicates.isEmpty()) {
+            return null;
+        }
+
+        String nxql = "SELECT " + String.join(", ", getProjection())
+                + " FROM DOCUMENT WHERE ecm:isTrashed = 0 AND ecm:isVersion = 0 AND ecm:isProxy = 0 AND ecm:mixinType != 'HiddenInNavigation'";
+        nxql += " AND (" + String.join(" OR ", predicates) + ")";
+
+        String searchPredicate = buildSearchPredicate();
+        if (searchPredicate == null) {
+            nxql += " AND ecm:parentId = " + NXQL.escapeString(getParentId(session));
         } else {
-            // . . .
-            // We could start at the current document container's level
-            // . . .
-            // But here, we start at the root
-            // ********** WARNING WE ASSUME THE CURRENT USER CAN READ ROOT AND ALL **********
-            DocumentModel root = session.getDocument(new PathRef("/"));
-            nxql += " AND ecm:parentId = '" + root.getId() + "'";
+            // A search is made in the whole subtree of the folder
+            nxql += " AND ecm:ancestorId = " + NXQL.escapeString(getParentId(session)) + " AND " + searchPredicate;
+        }
+
+        if (additionalPredicate != null) {
+            nxql += " AND " + additionalPredicate;
         }
 
-        nxql += " ORDER BY dc:title ASC";
+        nxql += " ORDER BY dc:title ASC, " + NXQL.ECM_UUID + " ASC";
 
         return nxql;
 
     }
 
+    /*
+     * The optional "query" object of the request, turned into NXQL predicates:
+     * - fulltext: "ecm:fulltext", uses the fulltext index of the repository
+     * - title: the title starts with this value (case insensitive)
+     * - tags: array (or comma separated list) of tags the documents must all have
+     * Returns null if there is nothing to search
+     */
+    protected String buildSearchPredicate() throws JSONException {
+
+        if (query == null) {
+            return null;
+        }
+
+        List<String> predicates = new ArrayList<>();
+
+        String fulltext = query.optString("fulltext", null);
+        if (StringUtils.isNotBlank(fulltext)) {
+            predicates.add(NXQL.ECM_FULLTEXT + " = " + NXQL.escapeString(fulltext.trim()));
+        }
+
+        String title = query.optString("title", null);
+        if (StringUtils.isNotBlank(title)) {
+            // Escape the LIKE wildcards, it is a prefix
+            String prefix = title.trim().replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+            predicates.add("dc:title ILIKE " + NXQL.escapeString(prefix + "%"));
+        }
+
+        List<String> tags = new ArrayList<>();
+        JSONArray tagsArray = query.optJSONArray("tags");
+        if (tagsArray != null) {
+            tags.addAll(toList(tagsArray));
+        } else if (StringUtils.isNotBlank(query.optString("tags", null))) {
+            tags.addAll(Arrays.asList(query.getString("tags").split(",")));
+        }
+        if (!tags.isEmpty() && Framework.getService(SchemaManager.class).getField(COL_TAGS) == null) {
+            log.warn("Searching by tags requires the nxtag schema, tags are ignored");
+            tags.clear();
+        }
+        for (String tag : tags) {
+            if (StringUtils.isNotBlank(tag)) {
+                // Each tag has its own wildcard, so documents must have all of them
+                predicates.add("nxtag:tags/*/label = " + NXQL.escapeString(tag.trim()));
+            }
+        }
+
+        return predicates.isEmpty() ? null : String.join(" AND ", predicates);
+    }
+
+    protected boolean isSearch() throws JSONException {
+        return buildSearchPredicate() != null;
+    }
+
+    /*
+     * The page after the cursor (first page if null): titled items first, then the untitled ones, in two queries so
+     * we don't depend on the way the database sorts null values.
+     */
+    protected List<Map<String, Serializable>> queryAfterCursor(CoreSession session, BrowseCursor browseCursor,
+            long queryLimit) throws JSONException {
+
+        List<Map<String, Serializable>> rows = new ArrayList<>();
+        if (browseCursor == null || !browseCursor.isInUntitled()) {
+            String predicate = "dc:title IS NOT NULL";
+            if (browseCursor != null) {
+                predicate += " AND " + browseCursor.getTitledPredicate();
+            }
+            rows.addAll(session.queryProjection(buildNXQL(session, predicate), queryLimit, 0, false));
+        }
+        if (queryLimit == 0 || rows.size() < queryLimit) {
+            String predicate = "dc:title IS NULL";
+            if (browseCursor != null && browseCursor.isInUntitled()) {
+                predicate += " AND " + browseCursor.getUntitledPredicate();
+            }
+            long remaining = queryLimit == 0 ? 0 : queryLimit - rows.size();
+            rows.addAll(session.queryProjection(buildNXQL(session, predicate), remaining, 0, false));
+        }
+
+        return rows;
+    }
+
+    /*
+     * Where to start?
+     */
+    protected String getParentId(CoreSession session) {
+
+        if (StringUtils.isNotBlank(folderId)) {
+            return folderId;
+        }
+
+        // . . .
+        // We could start at the current document container's level
+        // . . .
+        // But here, we start at the root
+        // ********** WARNING WE ASSUME THE CURRENT USER CAN READ ROOT AND ALL **********
+        return ContainerCache.getInstance().getRootId(session);
+    }
+
+    /*
+     * Same rules as the ones that were applied after the query: for a File, "file" wins over "document", which wins
+     * over "output-support"
+     */
+    protected String buildAssetTypesPredicate(List<String> assetTypesList) {
+
+        List<String> kinds = getKinds(assetTypesList);
+        if (kinds.isEmpty()) {
+            return null;
+        }
+        String legacyPredicate = buildLegacyAssetTypesPredicate(assetTypesList);
+
+        // Classified documents are filtered on fonto:kind, the others (not backfilled yet) with the blob's values
+        return "(" + COL_FONTO_KIND + " IN (" + kinds.stream().map(NXQL::escapeString).collect(Collectors.joining(", "))
+                + ") OR (" + COL_FONTO_KIND + " IS NULL AND " + legacyPredicate + "))";
+    }
+
+    /*
+     * The values of fonto:kind matching the asset types
+     */
+    protected List<String> getKinds(List<String> assetTypesList) {
+
+        boolean anyFile = assetTypesList.contains(FONTO_TYPE_FILE);
+        List<String> kinds = new ArrayList<>();
+        if (anyFile) {
+            kinds.addAll(Arrays.asList(FONTO_TYPE_FILE, FONTO_TYPE_DOCUMENT, FONTO_TYPE_OUTPUT_SUPPORT));
+        } else if (assetTypesList.contains(FONTO_TYPE_DOCUMENT)) {
+            kinds.add(FONTO_TYPE_DOCUMENT);
+        } else if (assetTypesList.contains(FONTO_TYPE_OUTPUT_SUPPORT)) {
+            kinds.add(FONTO_TYPE_OUTPUT_SUPPORT);
+        }
+        if (anyFile || assetTypesList.contains(FONTO_TYPE_IMAGE)) {
+            kinds.add(FONTO_TYPE_IMAGE);
+        }
+        if (anyFile || assetTypesList.contains(FONTO_TYPE_VIDEO)) {
+            kinds.add(FONTO_TYPE_VIDEO);
+        }
+        if (anyFile || assetTypesList.contains(FONTO_TYPE_AUDIO)) {
+            kinds.add(FONTO_TYPE_AUDIO);
+        }
+        return kinds;
+    }
+
+    /*
+     * Same filter, calculated from the blob, for documents without fonto:kind
+     */
+    protected String buildLegacyAssetTypesPredicate(List<String> assetTypesList) {
+
+        boolean anyFile = assetTypesList.contains(FONTO_TYPE_FILE);
+        List<String> predicates = new ArrayList<>();
+
+        if (anyFile) {
+            predicates.add("ecm:primaryType = 'File'");
+        } else if (assetTypesList.contains(FONTO_TYPE_DOCUMENT)) {
+            predicates.add("(ecm:primaryType = 'File' AND " + buildDocumentPredicate() + ")");
+        } else if (assetTypesList.contains(FONTO_TYPE_OUTPUT_SUPPORT)) {
+            predicates.add("(ecm:primaryType = 'File' AND " + buildOutputSupportPredicate() + ")");
+        }
+        if (anyFile || assetTypesList.contains(FONTO_TYPE_IMAGE)) {
+            predicates.add("ecm:primaryType = 'Picture'");
+        }
+        if (anyFile || assetTypesList.contains(FONTO_TYPE_VIDEO)) {
+            predicates.add("ecm:primaryType = 'Video'");
+        }
+        if (anyFile || assetTypesList.contains(FONTO_TYPE_AUDIO)) {
+            predicates.add("ecm:primaryType = 'Audio'");
+        }
+
+        return predicates.isEmpty() ? null : "(" + String.join(" OR ", predicates) + ")";
+    }
+
+    /*
+     * XML, or text with one of the Fonto document extensions
+     */
+    protected String buildDocumentPredicate() {
+
+        return "(" + COL_FILE_MIME_TYPE + " LIKE 'application/xml%' OR " + COL_FILE_MIME_TYPE + " LIKE '%xml' OR (("
+                + COL_FILE_MIME_TYPE + " LIKE 'text/%' OR " + COL_FILE_MIME_TYPE + " IS NULL) AND "
+                + buildFileNamePredicate(FONTO_DOCUMENT_FILE_EXTENSIONS) + "))";
+    }
+
+    /*
+     * Text (or XML) with one of the Fonto output support extensions
+     */
+    protected String buildOutputSupportPredicate() {
+
+        return "((" + COL_FILE_MIME_TYPE + " LIKE 'text/%' OR " + COL_FILE_MIME_TYPE + " LIKE '%xml' OR "
+                + COL_FILE_MIME_TYPE + " IS NULL) AND " + buildFileNamePredicate(FONTO_OUTPUTSUPPORT_FILE_EXTENSIONS)
+                + ")";
+    }
+
+    protected String buildFileNamePredicate(List<String> extensions) {
+
+        return "(" + extensions.stream()
+                               .map(ext -> COL_FILE_NAME + " LIKE " + NXQL.escapeString("%" + ext))
+                               .collect(Collectors.joining(" OR "))
+                + ")";
+    }
+
+    protected void putIfNotNull(JSONObject obj, String key, Object value) throws JSONException {
+
+        if (value != null) {
+            obj.put(key, value);
+        }
+    }
+
+    protected List<String> toList(JSONArray array) throws JSONException {
+
+        List<String> list = new ArrayList<>();
+        if (array != null) {
+            for (int i = 0; i < array.length(); i++) {
+                list.add(array.getString(i));
+            }
+        }
+        return list;
+    }
+
+    /*
+     * The columns read by browse(). The picture, video and versioning fields are only fetched if their schema is
+     * deployed, else the query would fail.
+     */
+    protected List<String> getProjection() {
+
+        SchemaManager schemaManager = Framework.getService(SchemaManager.class);
+
+        List<String> columns = new ArrayList<>(BASE_COLUMNS);
+        if (schemaManager.getField("picture:info") != null) {
+            columns.addAll(Arrays.asList(COL_PICTURE_WIDTH, COL_PICTURE_HEIGHT));
+        }
+        if (schemaManager.getField("vid:info") != null) {
+            columns.addAll(Arrays.asList(COL_VIDEO_WIDTH, COL_VIDEO_HEIGHT, COL_VIDEO_DURATION));
+        }
+        if (schemaManager.getField(COL_MAJOR_VERSION) != null) {
+            columns.addAll(Arrays.asList(COL_MAJOR_VERSION, COL_MINOR_VERSION, NXQL.ECM_ISCHECKEDIN));
+        }
+
+        return columns;
+    }
+
+    /*
+     * Returns the ancestors of the (non folderish) documents of the page, by parent id. All the documents have the
+     * same parent, except for a search.
+     */
+    protected Map<String, List<HierarchyCache.Ancestor>> fetchAncestors(CoreSession session,
+            List<Map<String, Serializable>> rows) {
+
+        Map<String, List<HierarchyCache.Ancestor>> ancestorsByParent = new HashMap<>();
+        HierarchyCache hierarchyCache = HierarchyCache.getInstance();
+        for (Map<String, Serializable> row : rows) {
+            String parentId = (String) row.get(NXQL.ECM_PARENTID);
+            if (parentId != null && !isFolderish((String) row.get(NXQL.ECM_PRIMARYTYPE))) {
+                ancestorsByParent.computeIfAbsent(parentId,
+                        id -> hierarchyCache.getAncestors(session, new IdRef(id)));
+            }
+        }
+        return ancestorsByParent;
+    }
+
+    /*
+     * Returns the tags of all the (non folderish) documents of the page, by document id.
+     * Tags are stored on the documents themselves (nxtag:tags, NXTag facet), so one projection query returns them all
+     * (one row per tag). If the nxtag schema is not deployed (other TagService implementation), we fall back to
+     * calling the service for each document.
+     */
+    protected Map<String, Set<String>> fetchTags(CoreSession session, List<Map<String, Serializable>> rows) {
+
+        Map<String, Set<String>> tagsByDoc = new HashMap<>();
+        List<String> ids = rows.stream()
+                               .filter(row -> !isFolderish((String) row.get(NXQL.ECM_PRIMARYTYPE)))
+                               .map(row -> (String) row.get(NXQL.ECM_UUID))
+                               .collect(Collectors.toList());
+        if (ids.isEmpty()) {
+            return tagsByDoc;
+        }
+
+        if (Framework.getService(SchemaManager.class).getField(COL_TAGS) == null) {
+            for (String id : ids) {
+                tagsByDoc.put(id, tagService.getTags(session, id));
+            }
+            return tagsByDoc;
+        }
+
+        String nxql = "SELECT " + NXQL.ECM_UUID + ", " + COL_TAG_LABEL + " FROM Document WHERE " + NXQL.ECM_UUID
+                + " IN (" + ids.stream().map(NXQL::escapeString).collect(Collectors.joining(", ")) + ")";
+        try (IterableQueryResult result = session.queryAndFetch(nxql, NXQL.NXQL)) {
+            for (Map<String, Serializable> row : result) {
+                String label = (String) row.get(COL_TAG_LABEL);
+                if (StringUtils.isNotBlank(label)) {
+                    tagsByDoc.computeIfAbsent((String) row.get(NXQL.ECM_UUID), k -> new LinkedHashSet<>())
+                             .add(label);
+                }
+            }
+        }
+
+        return tagsByDoc;
+    }
+
+    /*
+     * The facets of a document are the ones of its type. (A Folderish facet added to a single document is not
+     * detected, but buildNXQL does filter on ecm:mixinType so it is still correctly filtered)
+     */
+    protected boolean isFolderish(String primaryType) {
+
+        DocumentType type = Framework.getService(SchemaManager.class).getDocumentType(primaryType);
+        return type != null && type.hasFacet(FacetNames.FOLDERISH);
+    }
+
+    /*
+     * Same label as DocumentModel#getVersionLabel for a live document: "major.minor", plus "+" if it was modified
+     * since it was checked in
+     */
+    protected String getVersionLabel(Map<String, Serializable> row) {
+
+        Long major = (Long) row.get(COL_MAJOR_VERSION);
+        Long minor = (Long) row.get(COL_MINOR_VERSION);
+        if (major == null && minor == null) {
+            return null;
+        }
+
+        String label = (major == null ? 0 : major) + "." + (minor == null ? 0 : minor);
+        if (!Boolean.TRUE.equals(row.get(NXQL.ECM_ISCHECKEDIN)) && !"0.0".equals(label)) {
+            label += "+";
+        }
+        return label;
+    }
+
+    /*
+     * Keeps a copy of what is written, for the cache. The copy is dropped if it gets bigger than maxLength.
+     */
+    protected static class CopyingWriter extends FilterWriter {
+
+        protected final int maxLength;
+
+        protected StringBuilder copy = new StringBuilder();
+
+        protected CopyingWriter(Writer out, int maxLength) {
+            super(out);
+            this.maxLength = maxLength;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            super.write(c);
+            if (copy != null) {
+                copy.append((char) c);
+                checkLength();
+            }
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            super.write(cbuf, off, len);
+            if (copy != null) {
+                copy.append(cbuf, off, len);
+                checkLength();
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            super.write(str, off, len);
+            if (copy != null) {
+                copy.append(str, off, off + len);
+                checkLength();
+            }
+        }
+
+        protected void checkLength() {
+            if (copy.length() > maxLength) {
+                copy = null;
+            }
+        }
+
+        public boolean isComplete() {
+            return copy != null;
+        }
+
+        @Override
+        public String toString() {
+            return copy == null ? null : copy.toString();
+        }
+    }
+
 }
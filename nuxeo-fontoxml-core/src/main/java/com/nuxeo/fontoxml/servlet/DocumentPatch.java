@@ -0,0 +1,167 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package com.nuxeo.fontoxml.servlet;
+
+import static com.nuxeo.fontoxml.servlet.Constants.PARAM_BASE_DIGEST;
+import static com.nuxeo.fontoxml.servlet.Constants.PARAM_DELTAS;
+import static com.nuxeo.fontoxml.servlet.Constants.PARAM_DIGEST;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A PUT /document sent as a patch of the content Fonto loaded, instead of the whole content:
+ * <code>
+ * "patch": {
+ *   "baseDigest": "MD5 of the content the deltas apply to",
+ *   "deltas": [{"start": 120, "end": 135, "text": "new text"}, ...],
+ *   "digest": "MD5 of the result"
+ * }
+ * </code>
+ * Digests are the hex MD5 of the UTF-8 content. <code>start</code> and <code>end</code> are offsets in characters
+ * (UTF-16 code units, like in JavaScript) in the base content: the text from <code>start</code> (included) to
+ * <code>end</code> (excluded) is replaced with <code>text</code>. Deltas must not overlap.
+ * <br/>
+ * When the base is not the current content (another save happened), or the result does not have the expected
+ * digest, the patch is rejected and the client must send the whole content.
+ *
+ * @since 10.10
+ */
+public class DocumentPatch {
+
+    protected static final String DELTA_START = "start";
+
+    protected static final String DELTA_END = "end";
+
+    protected static final String DELTA_TEXT = "text";
+
+    protected static class Delta {
+
+        protected final int start;
+
+        protected final int end;
+
+        protected final String text;
+
+        protected Delta(int start, int end, String text) {
+            this.start = start;
+            this.end = end;
+            this.text = text;
+        }
+    }
+
+    protected final String baseDigest;
+
+    protected final String digest;
+
+    protected final List<Delta> deltas;
+
+    protected DocumentPatch(String baseDigest, String digest, List<Delta> deltas) {
+        this.baseDigest = baseDigest;
+        this.digest = digest;
+        this.deltas = deltas;
+    }
+
+    /**
+     * @param patch the "patch" object of the request
+     * @return the patch, deltas sorted by position
+     * @throws IllegalArgumentException if the patch is malformed or deltas overlap
+     * @since 10.10
+     */
+    public static DocumentPatch fromJSON(JSONObject patch) {
+
+        try {
+            List<Delta> deltas = new ArrayList<>();
+            JSONArray array = patch.getJSONArray(PARAM_DELTAS);
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject delta = array.getJSONObject(i);
+                int start = delta.getInt(DELTA_START);
+                int end = delta.getInt(DELTA_END);
+                if (start < 0 || end < start) {
+                    throw new IllegalArgumentException("Invalid delta: " + delta);
+                }
+                deltas.add(new Delta(start, end, delta.optString(DELTA_TEXT, "")));
+            }
+            deltas.sort(Comparator.comparingInt(d -> d.start));
+            for (int i = 1; i < deltas.size(); i++) {
+                if (deltas.get(i).start < deltas.get(i - 1).end) {
+                    throw new IllegalArgumentException("Deltas overlap at " + deltas.get(i).start);
+                }
+            }
+            return new DocumentPatch(patch.getString(PARAM_BASE_DIGEST), patch.getString(PARAM_DIGEST), deltas);
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Invalid patch", e);
+        }
+    }
+
+    /**
+     * @param content
+     * @return the digest used by patches: hex MD5 of the UTF-8 content
+     * @since 10.10
+     */
+    public static String digest(String content) {
+        return DigestUtils.md5Hex(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param base the current content
+     * @return true if the deltas were calculated from this content
+     * @since 10.10
+     */
+    public boolean appliesTo(String base) {
+        return baseDigest.equalsIgnoreCase(digest(base));
+    }
+
+    /**
+     * Applies the deltas to the base. Does not check the base digest, see <code>appliesTo</code>.
+     *
+     * @param base
+     * @return the patched content, null if it does not have the expected digest
+     * @throws IllegalArgumentException if a delta is out of the base
+     * @since 10.10
+     */
+    public String apply(String base) {
+
+        int length = base.length();
+        for (Delta delta : deltas) {
+            length += delta.text.length() - (delta.end - delta.start);
+        }
+        StringBuilder result = new StringBuilder(Math.max(length, 0));
+        int position = 0;
+        for (Delta delta : deltas) {
+            if (delta.end > base.length()) {
+                throw new IllegalArgumentException("Delta out of the content: " + delta.start + "-" + delta.end);
+            }
+            result.append(base, position, delta.start).append(delta.text);
+            position = delta.end;
+        }
+        result.append(base, position, base.length());
+
+        String patched = result.toString();
+        return digest.equalsIgnoreCase(digest(patched)) ? patched : null;
+    }
+
+}
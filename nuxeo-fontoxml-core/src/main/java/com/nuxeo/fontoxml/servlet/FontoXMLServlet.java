@@ -21,14 +21,18 @@ package com.nuxeo.fontoxml.servlet;
 import static com.nuxeo.fontoxml.servlet.Constants.*;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.Serializable;
+import java.io.Reader;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.time.format.DateTimeFormatter;
+import java.util.Calendar;
 import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.stream.Collectors;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -36,6 +40,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.Part;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -45,27 +50,26 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.nuxeo.ecm.core.api.Blob;
-import org.nuxeo.ecm.core.api.Blobs;
 import org.nuxeo.ecm.core.api.CloseableCoreSession;
 import org.nuxeo.ecm.core.api.CoreInstance;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
 import org.nuxeo.ecm.core.api.DocumentRef;
 import org.nuxeo.ecm.core.api.IdRef;
 import org.nuxeo.ecm.core.api.Lock;
 import org.nuxeo.ecm.core.api.LockException;
 import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.impl.DocumentModelListImpl;
 import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
-import org.nuxeo.ecm.core.api.thumbnail.ThumbnailService;
-import org.nuxeo.ecm.core.event.Event;
-import org.nuxeo.ecm.core.event.EventService;
-import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
 import org.nuxeo.ecm.core.io.download.DownloadHelper;
-import org.nuxeo.ecm.platform.picture.api.ImageInfo;
-import org.nuxeo.ecm.platform.picture.api.ImagingService;
+import org.nuxeo.ecm.core.query.sql.NXQL;
 import org.nuxeo.runtime.api.Framework;
 
+import com.nuxeo.fontoxml.FontoXMLClassifier;
+import com.nuxeo.fontoxml.FontoXMLConfigDescriptor;
 import com.nuxeo.fontoxml.FontoXMLService;
+import com.nuxeo.fontoxml.autosave.AutosaveBuffer;
 
 /**
  * Servlet answering requests sent to /fontoxml
@@ -268,22 +272,14 @@ public class FontoXMLServlet extends HttpServlet {
      * GET /document
      * "This service is used by FontoXML to load all XML documents it needs during an edit session.
      * This includes documents initially loaded, templates and documents for preview."
+     * -
+     * When includeAdditionalDocuments is true, we also send the documents referenced by the main one (href, conref,
+     * xi:include), fetched with a single query, so Fonto does not have to send a GET /document for each of them.
      */
-    protected static boolean includAddDocsWarningSent = false;
-
     protected void handleGetDocument(HttpServletRequest req, HttpServletResponse resp) throws IOException {
         // String context = req.getParameter(PARAM_CONTEXT);
         String docId = req.getParameter(PARAM_DOC_ID);
-
-        String includeAdditionalDocuments = req.getParameter("includeAdditionalDocuments");
-        if (includeAdditionalDocuments != null && includeAdditionalDocuments.equals("true")
-                && !includAddDocsWarningSent) {
-            includAddDocsWarningSent = true;
-            log.warn("\n====================================================================\n"
-                    + " includeAdditionalDocuments parameter is not support in this version.\n"
-                    + "(This warning is displayed only once.)\n"
-                    + "====================================================================");
-        }
+        boolean includeAdditionalDocuments = "true".equals(req.getParameter(PARAM_INCLUDE_ADDITIONAL_DOCUMENTS));
 
         // We assume these parameters were passed and are correctly formated
         try {
@@ -299,6 +295,12 @@ public class FontoXMLServlet extends HttpServlet {
 
                 DocumentModel doc = session.getDocument(docRef);
                 Blob blob = (Blob) doc.getPropertyValue("file:content");
+                // Send what Fonto autosaved, even if not yet written. It has no digest => no etag
+                Blob pendingContent = AutosaveBuffer.getInstance().getPendingContent(session.getRepositoryName(),
+                        docId);
+                if (pendingContent != null && blob != null) {
+                    blob = pendingContent;
+                }
                 if (blob == null) {
                     log.warn(doc.getTitle() + "/" + docId + " has no blob");
                     resp.sendError(HttpServletResponse.SC_NOT_FOUND, "This document has no blob");
@@ -311,36 +313,48 @@ public class FontoXMLServlet extends HttpServlet {
                     return;
                 }
 
-                String blobStr = blob.getString();
-                // log.warn("blob.getString => \n" + xml);
-
-                // Build the response
-                JSONObject responseJson = new JSONObject();
-                // - Required: Doc Id
-                responseJson.put(PARAM_DOC_ID, docId);
-                // - Required: XML content
-                responseJson.put(PARAM_CONTENT, blobStr);
-                // - Required: Lock info
+                // Conditional GET: the etag is built from the blob digest and the rest of the response (lock info,
+                // documentContext, hierarchy), so checking it does not require to read the blob.
+                // Not used with additional documents, the response then also depends on the referenced documents
                 JSONObject lock = getLockInfoForFonto(doc);
-                responseJson.put(PARAM_LOCK, lock);
-                // - Optional, documentContext
-                //   ("CMS-specific data associated with the document. Will be included in related requests.")
-                //   . . . maybe do optimization and put in there data that will then not need to be recalculated or
-                //   re-fetched.. . .
-                FontoDocumentContext documentContext = new FontoDocumentContext(doc, lock);
-                responseJson.put(PARAM_DOCUMENT_CONTEXT, documentContext.toJSON());
-                // - Optional, revisionId
-                //   (unused in this POC)
+                String etag = includeAdditionalDocuments ? null : getDocumentETag(doc, blob, lock);
+                if (ServletUtils.matchesIfNoneMatch(req, etag)) {
+                    log.info(docId + " not modified (" + etag + ")");
+                    ServletUtils.sendNotModified(resp, etag);
+                    return;
+                }
 
-                // With F4B, we must also return the "metadata" and its "hierarchy" object
-                // TODO Make this configurable depending on the distribution of fonto?
-                JSONObject metadata = new JSONObject();
-                JSONArray hierarchy = Utilities.buildHierarchy(doc);
-                metadata.put(PARAM_HIERARCHY, hierarchy);
-                responseJson.put(PARAM_METADATA, metadata);
+                DocumentModelList additionalDocs = null;
+                if (includeAdditionalDocuments) {
+                    additionalDocs = getAdditionalDocuments(session, doc, blob);
+                }
 
-                String response = responseJson.toString();
-                ServletUtils.sendOKStringResponse(resp, response);
+                // Build the response. The XML can be big (several MB), so we don't load it as a String but stream
+                // it to the response
+                if (etag != null) {
+                    resp.setHeader(HEADER_ETAG, etag);
+                    // Let the browser cache it, but always revalidate (the lock can change)
+                    resp.setHeader(HEADER_CACHE_CONTROL, "private, no-cache");
+                }
+                try (JSONStreamWriter writer = ServletUtils.startJSONResponse(resp, HttpServletResponse.SC_OK)) {
+                    writer.beginObject();
+                    writeDocument(writer, doc, blob, lock);
+                    if (additionalDocs != null) {
+                        // Each additional document has the same shape as the main one
+                        writer.name(PARAM_ADDITIONAL_DOCUMENTS).beginArray();
+                        for (DocumentModel additionalDoc : additionalDocs) {
+                            writer.beginObject();
+                            writer.name(PARAM_STATUS).value(HttpServletResponse.SC_OK);
+                            writer.name(PARAM_BODY).beginObject();
+                            writeDocument(writer, additionalDoc, (Blob) additionalDoc.getPropertyValue("file:content"),
+                                    getLockInfoForFonto(additionalDoc));
+                            writer.endObject();
+                            writer.endObject();
+                        }
+                        writer.endArray();
+                    }
+                    writer.endObject();
+                }
             }
 
         } catch (JSONException e) {
@@ -348,6 +362,101 @@ public class FontoXMLServlet extends HttpServlet {
         }
     }
 
+    /*
+     * Writes the fields expected by Fonto for a document (GET /document response), streaming the XML
+     */
+    protected void writeDocument(JSONStreamWriter writer, DocumentModel doc, Blob blob, JSONObject lock)
+            throws IOException, JSONException {
+
+        // - Optional, documentContext
+        //   ("CMS-specific data associated with the document. Will be included in related requests.")
+        //   . . . maybe do optimization and put in there data that will then not need to be recalculated or
+        //   re-fetched.. . .
+        FontoDocumentContext documentContext = new FontoDocumentContext(doc, lock);
+        // - Optional, revisionId
+        //   (unused in this POC)
+
+        JSONObject metadata = getMetadata(doc);
+
+        // - Required: Doc Id
+        writer.name(PARAM_DOC_ID).value(doc.getId());
+        // - Required: XML content
+        try (Reader xml = Utilities.getReader(blob)) {
+            writer.name(PARAM_CONTENT).value(xml);
+        }
+        // - Required: Lock info
+        writer.name(PARAM_LOCK).value(lock);
+        writer.name(PARAM_DOCUMENT_CONTEXT).value(documentContext.toJSON());
+        writer.name(PARAM_METADATA).value(metadata);
+    }
+
+    /*
+     * The "metadata" of a GET /document response
+     */
+    protected JSONObject getMetadata(DocumentModel doc) throws JSONException {
+
+        // With F4B, we must also return the "metadata" and its "hierarchy" object
+        // TODO Make this configurable depending on the distribution of fonto?
+        JSONObject metadata = new JSONObject();
+        JSONArray hierarchy = Utilities.buildHierarchy(doc);
+        metadata.put(PARAM_HIERARCHY, hierarchy);
+
+        return metadata;
+    }
+
+    /*
+     * Returns the documents referenced by the main one, fetched in one query. Documents the user cannot read, without
+     * blob or that are not text-based are not returned.
+     */
+    protected DocumentModelList getAdditionalDocuments(CoreSession session, DocumentModel doc, Blob blob)
+            throws IOException {
+
+        DocumentModelList result = new DocumentModelListImpl();
+
+        Set<String> ids = Utilities.extractReferencedDocumentIds(blob);
+        ids.remove(doc.getId());
+        if (ids.isEmpty()) {
+            return result;
+        }
+        if (ids.size() > MAX_ADDITIONAL_DOCUMENTS) {
+            log.warn(doc.getId() + " references " + ids.size() + " documents, only the first "
+                    + MAX_ADDITIONAL_DOCUMENTS + " are sent");
+            ids = ids.stream()
+                     .limit(MAX_ADDITIONAL_DOCUMENTS)
+                     .collect(Collectors.toCollection(LinkedHashSet::new));
+        }
+
+        String nxql = "SELECT * FROM Document WHERE ecm:uuid IN ("
+                + ids.stream().map(NXQL::escapeString).collect(Collectors.joining(","))
+                + ") AND ecm:isTrashed = 0";
+        for (DocumentModel oneDoc : session.query(nxql)) {
+            if (oneDoc.hasSchema("file")
+                    && Utilities.canGetString((Blob) oneDoc.getPropertyValue("file:content"))) {
+                result.add(oneDoc);
+            }
+        }
+        log.info(doc.getId() + ": " + result.size() + " additional documents (" + ids.size() + " references)");
+
+        return result;
+    }
+
+    /*
+     * The etag of a GET /document response: digest of the blob + a hash of everything else the response contains,
+     * the documentContext (lock info as returned to the current user, type, lifecycle state) and the metadata
+     * (titles of the ancestors, changed by a rename or a move). Returns null if the blob has no digest (not stored
+     * yet)
+     */
+    protected String getDocumentETag(DocumentModel doc, Blob blob, JSONObject lock) throws JSONException {
+
+        String digest = blob.getDigest();
+        if (StringUtils.isBlank(digest)) {
+            return null;
+        }
+
+        String context = new FontoDocumentContext(doc, lock).toJSON().toString() + getMetadata(doc).toString();
+        return "\"" + digest + "-" + DigestUtils.md5Hex(context.getBytes(StandardCharsets.UTF_8)) + "\"";
+    }
+
     /*
      * GET /asset/preview
      * "Retrieve a preview of an asset from the CMS. The CMS must return the binary result of the asset, the image for
@@ -360,8 +469,8 @@ public class FontoXMLServlet extends HttpServlet {
      * In this context, the user should have at least READ access to the asset, since it was retrieved after a search
      * (see DocumentBrowser)
      * -
-     * We also should handle what FontoXML is expected if the image was not modified (a 304 response status). We don't
-     * handle this in this POC.
+     * If the image was not modified, we return a 304 (ETag built with the digest of file:content and the variant,
+     * Last-Modified from dc:modified)
      */
     protected void handleGetAssetPreview(HttpServletRequest req, HttpServletResponse resp) throws IOException {
 
@@ -401,12 +510,44 @@ public class FontoXMLServlet extends HttpServlet {
                     return;
                 }
 
+                // Validators first, so we don't calculate a preview the client already has
+                FontoXMLService fontoService = Framework.getService(FontoXMLService.class);
+                String variant = req.getParameter(PARAM_VARIANT);
                 Blob assetBlob = null;
+                String digest = null;
+                String etag = null;
                 if (isGetPreview) {
-                    assetBlob = getAssetPreview(session, asset, req.getParameter(PARAM_VARIANT));
+                    // null for a placeholder (the asset has no thumbnail yet) => no validator, it will change.
+                    // No validator either for an unknown variant: it comes from the client, as is, and should not
+                    // end in a header
+                    if (AssetPreview.isKnownVariant(variant)) {
+                        digest = AssetPreview.getCacheDigest(asset);
+                        etag = digest == null ? null : "\"" + digest + "-" + variant + "\"";
+                    }
                 } else {
-                    FontoXMLService fontoService = Framework.getService(FontoXMLService.class);
                     assetBlob = fontoService.getRendition(session, asset);
+                    digest = assetBlob == null ? null : assetBlob.getDigest();
+                    etag = digest == null ? null : "\"" + digest + "\"";
+                }
+                long lastModified;
+                if (isGetPreview && etag == null) {
+                    // No Last-Modified either: calculating the thumbnail or the views does not change dc:modified,
+                    // so a client revalidating with If-Modified-Since would keep the placeholder forever
+                    lastModified = -1;
+                    resp.setHeader(HEADER_CACHE_CONTROL, NO_STORE_CACHE_CONTROL);
+                } else {
+                    lastModified = getLastModified(asset);
+                    boolean immutable = digest != null && digest.equals(req.getParameter(PARAM_DIGEST));
+                    setAssetCacheHeaders(resp, fontoService.getConfiguration(), etag, lastModified, immutable);
+
+                    if (ServletUtils.isNotModified(req, etag, lastModified)) {
+                        ServletUtils.sendNotModified(resp, etag);
+                        return;
+                    }
+                }
+
+                if (isGetPreview) {
+                    assetBlob = getAssetPreview(session, asset, variant);
                 }
 
                 if (assetBlob == null) {
@@ -420,12 +561,7 @@ public class FontoXMLServlet extends HttpServlet {
                 String contentDisposition = DownloadHelper.getRFC2231ContentDisposition(req, fileName, null);
                 resp.setHeader("Content-Disposition", contentDisposition);
                 resp.setContentType(assetBlob.getMimeType());
-                resp.setContentLengthLong(assetBlob.getLength());
-                OutputStream out = resp.getOutputStream();
-                IOUtils.copy(assetBlob.getStream(), out);
-                out.close();
-
-                resp.setStatus(HttpServletResponse.SC_OK);
+                ServletUtils.sendBlob(req, resp, assetBlob, etag, lastModified);
 
             } // CloseableCoreSession
 
@@ -434,47 +570,48 @@ public class FontoXMLServlet extends HttpServlet {
         }
     }
 
-    protected Blob getAssetPreview(CoreSession session, DocumentModel asset, String variant) {
-
-        Blob blob = null;
-
-        log.info("variant: " + variant);
+    /*
+     * dc:modified, or -1 if not set
+     */
+    protected long getLastModified(DocumentModel doc) {
 
-        blob = Framework.getService(ThumbnailService.class).getThumbnail(asset, session);
-        if (blob == null) {
-            // We are screwed... Calculate a default one?
-            log.warn("Asset ID " + asset.getId() + " (" + asset.getTitle() + ") => cannot get a thumbnail");
-            return null;
+        if (!doc.hasSchema("dublincore")) {
+            return -1;
         }
+        Calendar modified = (Calendar) doc.getPropertyValue("dc:modified");
+        return modified == null ? -1 : modified.getTimeInMillis();
+    }
 
-        // . . . RESIZE . . .
-        ImagingService imagingService = Framework.getService(ImagingService.class);
-        ImageInfo imageInfo = imagingService.getImageInfo(blob);
-        log.info("Thumbnail size: " + imageInfo.getWidth() + "x" + imageInfo.getHeight());
-        String thumbnailMimeType = blob.getMimeType();
-        switch (variant) {
-        case VARIANT_THUMBNAIL:
-            if (imageInfo.getWidth() != 128 || imageInfo.getHeight() != 128) {
-                log.info("RESIZING TO 128x128");
-                blob = imagingService.resize(blob, imageInfo.getFormat(), 128, 128, -1);
-                blob.setMimeType(thumbnailMimeType);
-            }
-            break;
+    /*
+     * Assets are protected by the document's permissions => "private" in the default configuration, so a shared cache
+     * never serves them to another user.
+     */
+    protected void setAssetCacheHeaders(HttpServletResponse resp, FontoXMLConfigDescriptor config, String etag,
+            long lastModified, boolean immutable) {
 
-        case VARIANT_WEB:
-            if (imageInfo.getWidth() > 1024 || imageInfo.getHeight() > 1024) {
-                log.info("RESIZING TO max 1024x1024");
-                blob = imagingService.resize(blob, imageInfo.getFormat(), 1024, 1024, -1);
-                blob.setMimeType(thumbnailMimeType);
-            }
-            break;
+        if (etag != null) {
+            resp.setHeader(HEADER_ETAG, etag);
+        }
+        if (lastModified >= 0) {
+            resp.setDateHeader(HEADER_LAST_MODIFIED, lastModified);
+        }
 
-        default:
-            log.warn("Unhandled variant: " + variant);
-            break;
+        String cacheControl;
+        if (immutable) {
+            cacheControl = config == null ? FontoXMLConfigDescriptor.DEFAULT_IMMUTABLE_CACHE_CONTROL
+                    : config.getImmutableAssetCacheControl();
+        } else {
+            cacheControl = config == null ? FontoXMLConfigDescriptor.DEFAULT_ASSET_CACHE_CONTROL
+                    : config.getAssetCacheControl();
+        }
+        if (StringUtils.isNotBlank(cacheControl)) {
+            resp.setHeader(HEADER_CACHE_CONTROL, cacheControl);
         }
+    }
+
+    protected Blob getAssetPreview(CoreSession session, DocumentModel asset, String variant) {
 
-        return blob;
+        return AssetPreview.getPreview(session, asset, variant);
     }
 
     /*
@@ -489,11 +626,15 @@ public class FontoXMLServlet extends HttpServlet {
     protected void handlePostDocument(HttpServletRequest req, HttpServletResponse resp)
             throws IOException, ServletException {
 
-        String body = IOUtils.toString(req.getReader());
         try {
-            JSONObject bodyJson = new JSONObject(body);
+            // The XML can be big (several MB): not loaded as a String
+            JSONStreamReader bodyReader = new JSONStreamReader(req.getReader());
+            SpoolingWriter contentWriter = newContentWriter();
+            JSONObject bodyJson = bodyReader.readObject(PARAM_CONTENT, contentWriter);
             JSONObject context = bodyJson.getJSONObject(PARAM_CONTEXT);
-            String content = bodyJson.getString(PARAM_CONTENT);
+            if (!bodyReader.hasStreamedValue()) {
+                throw new JSONException("JSONObject[\"" + PARAM_CONTENT + "\"] not found.");
+            }
             // Those are optional
             String folderId = bodyJson.optString(PARAM_FOLDER_ID);
             JSONObject metadata = bodyJson.optJSONObject(PARAM_METADATA);
@@ -513,9 +654,8 @@ public class FontoXMLServlet extends HttpServlet {
                     }
                 }
 
-                Blob blob = Blobs.createBlob(content);
+                Blob blob = contentWriter.getBlob(null);
                 // Hard code mimetype if we have a filename
-                blob.setMimeType(null);
                 if (metadata != null) {
                     String fileName = metadata.optString(PARAM_FILE_NAME);
                     String fileExtension = metadata.optString(PARAM_FILE_EXTENSION);
@@ -552,22 +692,25 @@ public class FontoXMLServlet extends HttpServlet {
                     newDoc = fontoService.handleOutput(session, newDoc, mainDoc);
                 }
 
-                JSONObject responseJson = new JSONObject();
-                responseJson.put(PARAM_DOC_ID, newDoc.getId());
-                responseJson.put(PARAM_CONTENT, content);
                 JSONObject lock = getLockInfoForFonto(newDoc);
-                responseJson.put(PARAM_LOCK, lock);
-
                 FontoDocumentContext documentContext = new FontoDocumentContext(newDoc, lock);
-                responseJson.put(PARAM_DOCUMENT_CONTEXT, documentContext.toJSON());
 
                 // - Optional, revisionId
                 //   (unused in this POC)
                 // - Optional, metadata
                 //   (unused in this POC)
 
-                String response = responseJson.toString();
-                ServletUtils.sendStringResponse(resp, HttpServletResponse.SC_CREATED, response);
+                // The content is sent back, streamed from the blob
+                try (JSONStreamWriter writer = ServletUtils.startJSONResponse(resp, HttpServletResponse.SC_CREATED)) {
+                    writer.beginObject();
+                    writer.name(PARAM_DOC_ID).value(newDoc.getId());
+                    try (Reader xml = Utilities.getReader(blob)) {
+                        writer.name(PARAM_CONTENT).value(xml);
+                    }
+                    writer.name(PARAM_LOCK).value(lock);
+                    writer.name(PARAM_DOCUMENT_CONTEXT).value(documentContext.toJSON());
+                    writer.endObject();
+                }
 
             }
 
@@ -718,15 +861,25 @@ public class FontoXMLServlet extends HttpServlet {
      */
     protected void handlePutDocument(HttpServletRequest req, HttpServletResponse resp) throws IOException {
 
-        String body = IOUtils.toString(req.getReader());
         try {
-            JSONObject bodyJson = new JSONObject(body);
+            // The XML can be big (several MB): not loaded as a String
+            JSONStreamReader bodyReader = new JSONStreamReader(req.getReader());
+            SpoolingWriter contentWriter = newContentWriter();
+            JSONObject bodyJson = bodyReader.readObject(PARAM_CONTENT, contentWriter);
             try (CloseableCoreSession session = CoreInstance.openCoreSession(null)) {
                 // Required:
                 // We could use the editSessionToken field
                 JSONObject context = bodyJson.getJSONObject(PARAM_CONTEXT);
                 String docId = bodyJson.getString(PARAM_DOC_ID);
-                String xmlContent = bodyJson.getString(PARAM_CONTENT);
+                // The content, or a patch of the content Fonto loaded (see DocumentPatch)
+                JSONObject patch = bodyJson.optJSONObject(PARAM_PATCH);
+                Blob xmlContent = null;
+                if (patch == null) {
+                    if (!bodyReader.hasStreamedValue()) {
+                        throw new JSONException("JSONObject[\"" + PARAM_CONTENT + "\"] not found.");
+                    }
+                    xmlContent = contentWriter.getBlob(MIME_TYPE_XML);
+                }
                 // Optional:
                 boolean autosave = bodyJson.optBoolean(PARAM_AUTOSAVE);
                 JSONObject documentContext = bodyJson.getJSONObject(PARAM_DOCUMENT_CONTEXT);
@@ -740,22 +893,37 @@ public class FontoXMLServlet extends HttpServlet {
                     log.warn("docId " + docId + " not found");
                     ServletUtils.sendStringResponse(resp, HttpServletResponse.SC_NOT_FOUND, null);
                 } else {
-                    DocumentModel doc = session.getDocument(docRef);
                     // . . . create a version . . .
                     // Not really, because Fonto can sends PUT very often during modification when autoSave is true
-                    Blob blob = (Blob) doc.getPropertyValue("file:content");
-                    Blob newBlob = new StringBlob(xmlContent, MIME_TYPE_XML);
-                    newBlob.setFilename(blob.getFilename());
-                    doc.setPropertyValue("file:content", (Serializable) newBlob);
-                    doc = session.saveDocument(doc);
-                    session.save();
-
-                    // Raise an event so configuration can add some logic
-                    DocumentEventContext eventCtx = new DocumentEventContext(session, session.getPrincipal(), doc);
-                    Event eventToSend = eventCtx.newEvent(EVENT_DOC_MODIFIED_BY_FONTOWML);
-                    // eventCtx.setProperty(EVENT_CONTEXT_IS_AUTOSAVE, autosave);
-                    doc.putContextData(EVENT_CONTEXT_IS_AUTOSAVE, autosave);
-                    Framework.getService(EventService.class).fireEvent(eventToSend);
+                    DocumentModel doc = session.getDocument(docRef);
+                    AutosaveBuffer autosaveBuffer = AutosaveBuffer.getInstance();
+                    if (patch != null) {
+                        xmlContent = applyPatch(resp, doc, patch, autosaveBuffer);
+                        if (xmlContent == null) {
+                            return;
+                        }
+                    }
+                    if (autosave && autosaveBuffer.isEnabled()) {
+                        // Write-behind: only the latest content is saved (and the event raised) at the next flush.
+                        // A previous content could not be saved => tell the user, GET still returns it and an
+                        // explicit save writes the new one
+                        String failure = autosaveBuffer.getFailure(session.getRepositoryName(), docId);
+                        if (failure != null) {
+                            resp.sendError(HttpServletResponse.SC_CONFLICT,
+                                    "The autosaved content could not be saved: " + failure);
+                            return;
+                        }
+                        // Check now what would make the flush fail, the user would not be told
+                        if (!canSave(doc)) {
+                            ServletUtils.sendStringResponse(resp, HttpServletResponse.SC_FORBIDDEN, null);
+                            return;
+                        }
+                        autosaveBuffer.put(session, docId, xmlContent);
+                    } else if (autosaveBuffer.isEnabled()) {
+                        autosaveBuffer.saveNow(session, doc, xmlContent);
+                    } else {
+                        Utilities.saveXMLContent(session, doc, xmlContent, autosave);
+                    }
 
                     // We should return 200 only if the documentContext has changed,
                     // 204 if not.
@@ -779,6 +947,77 @@ public class FontoXMLServlet extends HttpServlet {
         }
     }
 
+    /*
+     * Returns the content of the document after applying the patch sent by Fonto. The base is the content Fonto got:
+     * the autosaved one not yet saved, if any, else the stored one.
+     * If the patch can't be applied, sends the error and returns null:
+     * - 400 if the patch is malformed
+     * - 409 if the base is not the current content, or the result is not the expected one. The client must then send
+     * the whole content
+     */
+    protected Blob applyPatch(HttpServletResponse resp, DocumentModel doc, JSONObject patchJson,
+            AutosaveBuffer autosaveBuffer) throws IOException {
+
+        DocumentPatch patch;
+        try {
+            patch = DocumentPatch.fromJSON(patchJson);
+        } catch (IllegalArgumentException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return null;
+        }
+
+        Blob blob = autosaveBuffer.getPendingContent(doc.getRepositoryName(), doc.getId());
+        if (blob == null) {
+            blob = (Blob) doc.getPropertyValue("file:content");
+            if (blob == null || !Utilities.canGetString(blob)) {
+                resp.sendError(HttpServletResponse.SC_CONFLICT, "No text content to patch, send the whole content");
+                return null;
+            }
+        }
+        String base = blob.getString();
+        if (!patch.appliesTo(base)) {
+            log.info(doc.getId() + ": patch on an outdated content, the whole content must be sent");
+            resp.sendError(HttpServletResponse.SC_CONFLICT, "The base of the patch is not the current content");
+            return null;
+        }
+
+        String patched;
+        try {
+            patched = patch.apply(base);
+        } catch (IllegalArgumentException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return null;
+        }
+        if (patched == null) {
+            resp.sendError(HttpServletResponse.SC_CONFLICT, "The patched content does not have the expected digest");
+            return null;
+        }
+        return new StringBlob(patched, MIME_TYPE_XML);
+    }
+
+    /*
+     * Where the XML of a PUT/POST /document is written while the body is read: in memory, or in a temp. file when
+     * bigger than the configured threshold
+     */
+    protected SpoolingWriter newContentWriter() {
+
+        FontoXMLConfigDescriptor config = Framework.getService(FontoXMLService.class).getConfiguration();
+        return new SpoolingWriter(config == null ? 0 : config.getUploadSpoolThreshold());
+    }
+
+    /*
+     * True if the current user can write the document and it is not locked by someone else
+     */
+    protected boolean canSave(DocumentModel doc) {
+
+        CoreSession session = doc.getCoreSession();
+        if (!session.hasPermission(doc.getRef(), "Write")) {
+            return false;
+        }
+        Lock lock = doc.getLockInfo();
+        return lock == null || lock.getOwner().equals(session.getPrincipal().getName());
+    }
+
     /*
      * PUT /document/lock
      * "This service is used by FontoXML to acquire or release a lock on a given document."
@@ -820,7 +1059,11 @@ public class FontoXMLServlet extends HttpServlet {
                             // Ignore, we just don't lock the document
                         }
                     } else {
-                        // If acquireLock is false it means we must release it
+                        // If acquireLock is false it means we must release it. Save what was autosaved first, the
+                        // document is still locked by this user
+                        if (AutosaveBuffer.getInstance().flush(session, docId)) {
+                            doc = session.getDocument(docRef);
+                        }
                         try {
                             doc.removeLock();
                             lockRemoved = true;
@@ -867,7 +1110,8 @@ public class FontoXMLServlet extends HttpServlet {
 
     /**
      * Returns the Fonto document type (document, image, file, ... for the input document
-     * For this POC, this is based on the document type. Final product should be smarter (using facet, maybe?)
+     * It is read from the <code>FontoXML</code> facet when the document has it (see <code>FontoXMLClassifier</code>),
+     * else it is based on the document type.
      * (it actually returns "folder" if the document has the "Folderish" facet)
      * 
      * @param doc
@@ -880,39 +1124,40 @@ public class FontoXMLServlet extends HttpServlet {
             return FONTO_TYPE_FOLDER;
         }
 
-        if (!doc.hasSchema("file")) {
-            return FONTO_TYPE_UNKNOWN;
+        if (doc.hasFacet(FontoXMLClassifier.FACET)) {
+            String kind = (String) doc.getPropertyValue(FontoXMLClassifier.XPATH_KIND);
+            if (kind != null) {
+                return FontoXMLClassifier.toFontoType(kind);
+            }
         }
 
-        Blob blob = (Blob) doc.getPropertyValue("file:content");
-        if (blob == null) {
+        if (!doc.hasSchema("file")) {
             return FONTO_TYPE_UNKNOWN;
         }
 
-        // TODO: Handle document-template...
-
-        switch (doc.getType()) {
-        case "File":
-            String mimeType = blob.getMimeType();
-            if (mimeType != null && mimeType.equals(MIME_TYPE_XML)) {
-                return FONTO_TYPE_DOCUMENT;
-            } else {
-                return FONTO_TYPE_FILE;
-            }
-
-        case "Picture":
-            return FONTO_TYPE_IMAGE;
-
-        case "Audio":
-            return FONTO_TYPE_AUDIO;
-
-        case "Video":
-            return FONTO_TYPE_VIDEO;
+        // Not classified yet: same rules as the FontoXMLClassifier
+        return FontoXMLClassifier.toFontoType(FontoXMLClassifier.computeKind(doc));
+    }
 
-        default:
-            return FONTO_TYPE_UNKNOWN;
+    /**
+     * Same as <code>getFontoType(DocumentModel)</code>, when the document is not loaded (typically, its values were
+     * fetched with a projection query) and not classified yet
+     * 
+     * @param primaryType
+     * @param isFolder
+     * @param mimeType the mime type of file:content
+     * @param fileName the file name of file:content
+     * @return the Fonto type
+     * @since 10.10
+     */
+    public static String getFontoType(String primaryType, boolean isFolder, String mimeType, String fileName) {
 
+        if (isFolder) {
+            return FONTO_TYPE_FOLDER;
         }
 
+        // TODO: Handle document-template...
+
+        return FontoXMLClassifier.toFontoType(FontoXMLClassifier.computeKind(primaryType, mimeType, fileName));
     }
 }
@@ -0,0 +1,294 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package com.nuxeo.fontoxml.servlet;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Minimal streaming JSON reader, the counterpart of <code>JSONStreamWriter</code>, used for the requests that can be
+ * (very) big, typically the XML content of a PUT /document, so we never hold the whole body in memory.
+ * <br/>
+ * Reads one JSON object. The value of one field (the big one) is decoded to a <code>Writer</code> while it is read,
+ * the other fields are small and are parsed with org.json.
+ * <br/>
+ * Usage:
+ * <code>
+ * JSONStreamReader reader = new JSONStreamReader(req.getReader());
+ * JSONObject fields = reader.readObject("content", writer);
+ * if (reader.hasStreamedValue()) ...
+ * </code>
+ *
+ * @since 10.10
+ */
+public class JSONStreamReader {
+
+    protected static final int BUFFER_SIZE = 8192;
+
+    protected final Reader reader;
+
+    protected final char[] buffer = new char[BUFFER_SIZE];
+
+    protected int position = 0;
+
+    protected int limit = 0;
+
+    protected boolean streamedValue = false;
+
+    public JSONStreamReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Reads the JSON object. The reader is read until the end of the object but not closed.
+     *
+     * @param streamedField name of the field whose value (a string) is written to <code>target</code>
+     * @param target
+     * @return the other fields
+     * @throws IOException
+     * @throws JSONException if the content is not a JSON object, or the value of the streamed field is not a string
+     * @since 10.10
+     */
+    public JSONObject readObject(String streamedField, Writer target) throws IOException, JSONException {
+
+        JSONObject fields = new JSONObject();
+
+        expect('{');
+        if (peekNonSpace() == '}') {
+            read();
+            return fields;
+        }
+        while (true) {
+            expect('"');
+            StringBuilder name = new StringBuilder();
+            readString(name);
+            expect(':');
+            if (name.toString().equals(streamedField) && peekNonSpace() != 'n') {
+                expect('"');
+                readString(target);
+                streamedValue = true;
+            } else {
+                StringBuilder raw = new StringBuilder();
+                captureValue(raw);
+                fields.put(name.toString(), new JSONTokener(raw.toString()).nextValue());
+            }
+
+            int c = readNonSpace();
+            if (c == '}') {
+                return fields;
+            }
+            if (c != ',') {
+                throw syntaxError("Expected ',' or '}'");
+            }
+        }
+    }
+
+    /**
+     * @return true if the streamed field was in the object (and not null)
+     */
+    public boolean hasStreamedValue() {
+        return streamedValue;
+    }
+
+    /*
+     * Decodes a string (the opening quote already read) to out, until its closing quote
+     */
+    protected void readString(Appendable out) throws IOException, JSONException {
+
+        char[] chunk = new char[BUFFER_SIZE];
+        int count = 0;
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                throw syntaxError("Unterminated string");
+            }
+            if (c == '"') {
+                break;
+            }
+            if (c == '\\') {
+                c = readEscaped();
+            }
+            if (count == chunk.length) {
+                append(out, chunk, count);
+                count = 0;
+            }
+            chunk[count++] = (char) c;
+        }
+        append(out, chunk, count);
+    }
+
+    protected int readEscaped() throws IOException, JSONException {
+
+        int c = read();
+        switch (c) {
+        case 'b':
+            return '\b';
+        case 't':
+            return '\t';
+        case 'n':
+            return '\n';
+        case 'f':
+            return '\f';
+        case 'r':
+            return '\r';
+        case 'u':
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                int digit = Character.digit(read(), 16);
+                if (digit < 0) {
+                    throw syntaxError("Invalid \\u escape");
+                }
+                value = (value << 4) + digit;
+            }
+            return value;
+        case '"':
+        case '\\':
+        case '/':
+            return c;
+        default:
+            throw syntaxError("Invalid escape");
+        }
+    }
+
+    /*
+     * Copies the JSON text of the next value (string, number, object, array, true/false/null) as is
+     */
+    protected void captureValue(StringBuilder raw) throws IOException, JSONException {
+
+        int c = peekNonSpace();
+        if (c == '"') {
+            captureString(raw);
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            do {
+                c = peek();
+                if (c == -1) {
+                    throw syntaxError("Unterminated " + (raw.charAt(0) == '{' ? "object" : "array"));
+                }
+                if (c == '"') {
+                    captureString(raw);
+                    continue;
+                }
+                read();
+                raw.append((char) c);
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+            } while (depth > 0);
+        } else {
+            while ((c = peek()) != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+                raw.append((char) read());
+            }
+            if (raw.length() == 0) {
+                throw syntaxError("Expected a value");
+            }
+        }
+    }
+
+    protected void captureString(StringBuilder raw) throws IOException, JSONException {
+
+        raw.append((char) read());
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                throw syntaxError("Unterminated string");
+            }
+            raw.append((char) c);
+            if (c == '\\') {
+                c = read();
+                if (c == -1) {
+                    throw syntaxError("Unterminated string");
+                }
+                raw.append((char) c);
+            } else if (c == '"') {
+                return;
+            }
+        }
+    }
+
+    protected void expect(char expected) throws IOException, JSONException {
+
+        if (readNonSpace() != expected) {
+            throw syntaxError("Expected '" + expected + "'");
+        }
+    }
+
+    protected int readNonSpace() throws IOException {
+
+        peekNonSpace();
+        return read();
+    }
+
+    protected int peekNonSpace() throws IOException {
+
+        int c;
+        while ((c = peek()) != -1 && Character.isWhitespace(c)) {
+            read();
+        }
+        return c;
+    }
+
+    protected int peek() throws IOException {
+
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position];
+    }
+
+    protected int read() throws IOException {
+
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++];
+    }
+
+    protected boolean fill() throws IOException {
+
+        limit = reader.read(buffer, 0, BUFFER_SIZE);
+        position = 0;
+        if (limit <= 0) {
+            limit = 0;
+            return false;
+        }
+        return true;
+    }
+
+    protected static void append(Appendable out, char[] chars, int count) throws IOException {
+
+        if (out instanceof Writer) {
+            ((Writer) out).write(chars, 0, count);
+        } else {
+            ((StringBuilder) out).append(chars, 0, count);
+        }
+    }
+
+    protected JSONException syntaxError(String message) {
+        return new JSONException(message + " in the JSON body");
+    }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package com.nuxeo.fontoxml.servlet;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Minimal streaming JSON writer, used when the response can be (very) big, typically the XML content of a
+ * GET /document, so we never hold the whole JSON string in memory.
+ * <br/>
+ * Small values (lock info, documentContext, ...) are still built with org.json and written as is, only the big ones
+ * are streamed (see {@link #value(Reader)})
+ * <br/>
+ * Usage:
+ * <code>
+ * writer.beginObject().name("documentId").value(docId).name("content").value(reader).endObject();
+ * </code>
+ *
+ * @since 10.10
+ */
+public class JSONStreamWriter implements Closeable {
+
+    protected static final int BUFFER_SIZE = 8192;
+
+    protected final Writer writer;
+
+    // One entry per opened object/array, true if at least one value was written in it (=> need a comma)
+    protected final Deque<Boolean> hasValues = new ArrayDeque<>();
+
+    protected boolean afterName = false;
+
+    public JSONStreamWriter(OutputStream out) {
+        this(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    public JSONStreamWriter(Writer writer) {
+        this.writer = writer instanceof BufferedWriter ? writer : new BufferedWriter(writer, BUFFER_SIZE);
+    }
+
+    public JSONStreamWriter beginObject() throws IOException {
+        beforeValue();
+        writer.write('{');
+        hasValues.push(false);
+        return this;
+    }
+
+    public JSONStreamWriter endObject() throws IOException {
+        hasValues.pop();
+        writer.write('}');
+        return this;
+    }
+
+    public JSONStreamWriter beginArray() throws IOException {
+        beforeValue();
+        writer.write('[');
+        hasValues.push(false);
+        return this;
+    }
+
+    public JSONStreamWriter endArray() throws IOException {
+        hasValues.pop();
+        writer.write(']');
+        return this;
+    }
+
+    public JSONStreamWriter name(String name) throws IOException {
+        beforeValue();
+        writeQuoted(name);
+        writer.write(':');
+        afterName = true;
+        return this;
+    }
+
+    public JSONStreamWriter value(String value) throws IOException {
+        beforeValue();
+        if (value == null) {
+            writer.write("null");
+        } else {
+            writeQuoted(value);
+        }
+        return this;
+    }
+
+    public JSONStreamWriter value(long value) throws IOException {
+        beforeValue();
+        writer.write(Long.toString(value));
+        return this;
+    }
+
+    public JSONStreamWriter value(boolean value) throws IOException {
+        beforeValue();
+        writer.write(value ? "true" : "false");
+        return this;
+    }
+
+    public JSONStreamWriter value(JSONObject value) throws IOException {
+        beforeValue();
+        writer.write(value == null ? "null" : value.toString());
+        return this;
+    }
+
+    public JSONStreamWriter value(JSONArray value) throws IOException {
+        beforeValue();
+        writer.write(value == null ? "null" : value.toString());
+        return this;
+    }
+
+    /**
+     * Writes the content of the reader as a JSON string, escaping it on the fly. The reader is read until its end
+     * but not closed.
+     *
+     * @param reader
+     * @return this writer
+     * @throws IOException
+     * @since 10.10
+     */
+    public JSONStreamWriter value(Reader reader) throws IOException {
+        beforeValue();
+        writer.write('"');
+        char[] buffer = new char[BUFFER_SIZE];
+        int count;
+        while ((count = reader.read(buffer)) != -1) {
+            writeEscaped(buffer, count);
+        }
+        writer.write('"');
+        return this;
+    }
+
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    protected void beforeValue() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (!hasValues.isEmpty()) {
+            if (hasValues.peek()) {
+                writer.write(',');
+            } else {
+                hasValues.pop();
+                hasValues.push(true);
+            }
+        }
+    }
+
+    protected void writeQuoted(String value) throws IOException {
+        writer.write('"');
+        char[] chars = value.toCharArray();
+        writeEscaped(chars, chars.length);
+        writer.write('"');
+    }
+
+    /*
+     * Same escaping rules as org.json's JSONObject.quote, so the result can be read the same way by Fonto
+     */
+    protected void writeEscaped(char[] chars, int count) throws IOException {
+        int start = 0;
+        for (int i = 0; i < count; i++) {
+            char c = chars[i];
+            String escaped = null;
+            switch (c) {
+            case '"':
+                escaped = "\\\"";
+                break;
+            case '\\':
+                escaped = "\\\\";
+                break;
+            case '\b':
+                escaped = "\\b";
+                break;
+            case '\t':
+                escaped = "\\t";
+                break;
+            case '\n':
+                escaped = "\\n";
+                break;
+            case '\f':
+                escaped = "\\f";
+                break;
+            case '\r':
+                escaped = "\\r";
+                break;
+            default:
+                if (c < ' ' || c == 0x2028 || c == 0x2029) {
+                    escaped = String.format("\\u%04x", (int) c);
+                }
+                break;
+            }
+            if (escaped != null) {
+                writer.write(chars, start, i - start);
+                writer.write(escaped);
+                start = i + 1;
+            }
+        }
+        writer.write(chars, start, count - start);
+    }
+
+}
@@ -18,30 +18,56 @@
  */
 package com.nuxeo.fontoxml.servlet;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.Part;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.blob.BlobManager;
+import org.nuxeo.ecm.core.blob.BlobProvider;
+import org.nuxeo.ecm.core.blob.LocalBlobProvider;
+import org.nuxeo.ecm.core.blob.ManagedBlob;
+import org.nuxeo.runtime.api.Framework;
 
 /**
  * @since 10.10
  */
 public class ServletUtils {
 
+    // Only one range is handled. "bytes=start-end", "bytes=start-" or "bytes=-suffixLength"
+    protected static final Pattern RANGE_PATTERN = Pattern.compile("^bytes=(\\d*)-(\\d*)$");
+
+    // Tomcat's sendfile, see org.apache.catalina.Globals
+    protected static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+
+    protected static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+
+    protected static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+
+    protected static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
     public static void sendStringResponse(HttpServletResponse resp, int status, String response) throws IOException {
 
         resp.setStatus(status);
 
         if (StringUtils.isNotBlank(response)) {
+            byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
             resp.setContentType("application/json");
-            resp.setContentLength(response.getBytes().length);
+            resp.setCharacterEncoding("UTF-8");
+            resp.setContentLength(bytes.length);
             OutputStream out = resp.getOutputStream();
-            out.write(response.getBytes());
+            out.write(bytes);
             out.close();
         }
     }
@@ -50,7 +76,282 @@ public class ServletUtils {
 
         sendStringResponse(resp, HttpServletResponse.SC_OK, response);
     }
+
+    /**
+     * Sets the status and JSON headers and returns a writer streaming to the response. No content length is set (the
+     * response is chunked), the caller must close the writer once done.
+     * 
+     * @param resp
+     * @param status
+     * @return the writer
+     * @throws IOException
+     * @since 10.10
+     */
+    public static JSONStreamWriter startJSONResponse(HttpServletResponse resp, int status) throws IOException {
+
+        setJSONResponseHeaders(resp, status);
+
+        return new JSONStreamWriter(resp.getOutputStream());
+    }
+
+    /**
+     * Sets the status and JSON headers, for callers streaming the response themselves
+     * 
+     * @param resp
+     * @param status
+     * @since 10.10
+     */
+    public static void setJSONResponseHeaders(HttpServletResponse resp, int status) {
+
+        resp.setStatus(status);
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+    }
     
+    /**
+     * Checks the If-None-Match header of the request against the etag. Handles "*", a list of values and weak
+     * comparison (as it is for GET requests)
+     * 
+     * @param req
+     * @param etag, the quoted entity tag. If null, returns false
+     * @return true if the client already has this version
+     * @since 10.10
+     */
+    public static boolean matchesIfNoneMatch(HttpServletRequest req, String etag) {
+
+        String ifNoneMatch = req.getHeader(Constants.HEADER_IF_NONE_MATCH);
+        if (etag == null || StringUtils.isBlank(ifNoneMatch)) {
+            return false;
+        }
+
+        String opaqueTag = StringUtils.removeStart(etag, "W/");
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = StringUtils.removeStart(candidate.trim(), "W/");
+            if (candidate.equals("*") || candidate.equals(opaqueTag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Checks the conditional headers of a GET: If-None-Match first, and only if it is not sent, If-Modified-Since
+     * (HTTP dates have a precision of one second)
+     * 
+     * @param req
+     * @param etag the quoted entity tag, can be null
+     * @param lastModified the last modification date, -1 if unknown
+     * @return true if the client already has this version
+     * @since 10.10
+     */
+    public static boolean isNotModified(HttpServletRequest req, String etag, long lastModified) {
+
+        if (StringUtils.isNotBlank(req.getHeader(Constants.HEADER_IF_NONE_MATCH))) {
+            return matchesIfNoneMatch(req, etag);
+        }
+
+        if (lastModified < 0) {
+            return false;
+        }
+        long ifModifiedSince = getDateHeader(req, Constants.HEADER_IF_MODIFIED_SINCE);
+        return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /*
+     * -1 if the header is missing or is not a valid date
+     */
+    protected static long getDateHeader(HttpServletRequest req, String name) {
+
+        if (StringUtils.isBlank(req.getHeader(name))) {
+            return -1;
+        }
+        try {
+            return req.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Sends a 304 with the etag, no body
+     * 
+     * @param resp
+     * @param etag
+     * @since 10.10
+     */
+    public static void sendNotModified(HttpServletResponse resp, String etag) {
+
+        resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        if (etag != null) {
+            resp.setHeader(Constants.HEADER_ETAG, etag);
+        }
+    }
+
+    /**
+     * Sends the blob, handling a single byte range (Range and If-Range headers, 206 and 416 statuses) so video and
+     * audio assets can be seeked.
+     * <br/>
+     * When the blob is backed by a durable local file (see {@link #isDurableFile(Blob)}), it is sent with the
+     * container's sendfile when available (Tomcat), without copying it through the heap. Otherwise it is streamed.
+     * <br/>
+     * The caller sets the other headers (Content-Type, Content-Disposition, ETag, ...)
+     * 
+     * @param req
+     * @param resp
+     * @param blob
+     * @param etag the etag of the blob (to check If-Range). Can be null
+     * @param lastModified the last modification date (to check If-Range), -1 if unknown
+     * @throws IOException
+     * @since 10.10
+     */
+    public static void sendBlob(HttpServletRequest req, HttpServletResponse resp, Blob blob, String etag,
+            long lastModified) throws IOException {
+
+        long length = blob.getLength();
+        long start = 0;
+        long end = length - 1;
+        int status = HttpServletResponse.SC_OK;
+
+        if (length >= 0) {
+            resp.setHeader(Constants.HEADER_ACCEPT_RANGES, "bytes");
+
+            String range = req.getHeader(Constants.HEADER_RANGE);
+            if (StringUtils.isNotBlank(range) && matchesIfRange(req, etag, lastModified)) {
+                long[] bounds = parseRange(range, length);
+                if (bounds != null && bounds.length == 0) {
+                    resp.setHeader(Constants.HEADER_CONTENT_RANGE, "bytes */" + length);
+                    resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    return;
+                }
+                if (bounds != null) {
+                    start = bounds[0];
+                    end = bounds[1];
+                    status = HttpServletResponse.SC_PARTIAL_CONTENT;
+                    resp.setHeader(Constants.HEADER_CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+                }
+            }
+        }
+
+        resp.setStatus(status);
+        if (length < 0) {
+            // Unknown length, just stream it
+            try (InputStream in = blob.getStream(); OutputStream out = resp.getOutputStream()) {
+                IOUtils.copy(in, out);
+            }
+            return;
+        }
+
+        long count = end - start + 1;
+        resp.setContentLengthLong(count);
+
+        File file = blob.getFile();
+        if (file != null && Boolean.TRUE.equals(req.getAttribute(SENDFILE_SUPPORTED_ATTR))
+                && isDurableFile(blob)) {
+            // The container sends it once we return
+            req.setAttribute(SENDFILE_FILENAME_ATTR, file.getAbsolutePath());
+            req.setAttribute(SENDFILE_START_ATTR, Long.valueOf(start));
+            req.setAttribute(SENDFILE_END_ATTR, Long.valueOf(end + 1));
+            return;
+        }
+
+        OutputStream out = resp.getOutputStream();
+        try (InputStream in = blob.getStream()) {
+            IOUtils.copyLarge(in, out, start, count);
+        }
+        out.close();
+    }
+
+    /**
+     * Sendfile runs after the request returns: the file must still exist then. Only the files stored by a local blob
+     * provider are safe. Are not:
+     * <ul>
+     * <li>A temporary blob (a rendition, a resized preview, ...), deleted as soon as it is garbage collected</li>
+     * <li>The file of a remote blob provider (S3, ...), which is in its local cache and can be evicted</li>
+     * <li>A preview on disk, which can be removed by the cleanup of the cache, or by another node sharing its
+     * folder</li>
+     * </ul>
+     */
+    protected static boolean isDurableFile(Blob blob) {
+
+        if (!(blob instanceof ManagedBlob)) {
+            return false;
+        }
+        BlobProvider provider = Framework.getService(BlobManager.class)
+                                         .getBlobProvider(((ManagedBlob) blob).getProviderId());
+        return provider instanceof LocalBlobProvider;
+    }
+
+    /**
+     * If-Range: the range applies only if the client's copy is still the current one, checked with the entity tag
+     * (strong comparison) or the last modification date. Anything else means the full blob is sent.
+     */
+    protected static boolean matchesIfRange(HttpServletRequest req, String etag, long lastModified) {
+
+        String ifRange = req.getHeader(Constants.HEADER_IF_RANGE);
+        if (StringUtils.isBlank(ifRange)) {
+            return true;
+        }
+
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return etag != null && !ifRange.startsWith("W/") && !etag.startsWith("W/") && ifRange.equals(etag);
+        }
+
+        long date = getDateHeader(req, Constants.HEADER_IF_RANGE);
+        return lastModified >= 0 && date >= 0 && date / 1000 == lastModified / 1000;
+    }
+
+    /**
+     * Returns {start, end} (inclusive), an empty array if the range cannot be satisfied, or null if the header is
+     * invalid or not handled (several ranges, other unit) => the full blob must be sent.
+     * 
+     * @param range the value of the Range header
+     * @param length the length of the blob
+     * @return the bounds, an empty array or null
+     * @since 10.10
+     */
+    public static long[] parseRange(String range, long length) {
+
+        Matcher m = RANGE_PATTERN.matcher(range.trim());
+        if (!m.matches()) {
+            return null;
+        }
+
+        String first = m.group(1);
+        String last = m.group(2);
+        long start;
+        long end;
+        try {
+            if (first.isEmpty()) {
+                if (last.isEmpty()) {
+                    return null;
+                }
+                // Suffix: the last N bytes
+                long suffix = Long.parseLong(last);
+                if (suffix == 0) {
+                    return new long[0];
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+                if (!last.isEmpty() && Long.parseLong(last) < start) {
+                    return null;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        if (start >= length) {
+            return new long[0];
+        }
+
+        return new long[] { start, end };
+    }
+
     public static Blob createBlobFromPart(Part part) throws IOException {
         
         Blob b = null;
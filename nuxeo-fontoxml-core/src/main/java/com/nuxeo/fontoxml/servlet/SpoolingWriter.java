@@ -0,0 +1,114 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package com.nuxeo.fontoxml.servlet;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
+
+/**
+ * Writer collecting a text to a blob: kept in memory while small, written to a temporary file (UTF-8) once it
+ * exceeds the threshold. The file is deleted when the blob is garbage collected.
+ *
+ * @since 10.10
+ */
+public class SpoolingWriter extends Writer {
+
+    protected final long threshold;
+
+    protected StringBuilder memory = new StringBuilder();
+
+    protected Blob fileBlob = null;
+
+    protected Writer fileWriter = null;
+
+    /**
+     * @param threshold max. number of characters kept in memory. <= 0 => never spooled to a file
+     */
+    public SpoolingWriter(long threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+
+        if (fileWriter == null && threshold > 0 && memory.length() + len > threshold) {
+            spool();
+        }
+        if (fileWriter != null) {
+            fileWriter.write(cbuf, off, len);
+        } else {
+            memory.append(cbuf, off, len);
+        }
+    }
+
+    protected void spool() throws IOException {
+
+        fileBlob = Blobs.createBlobWithExtension(".xml");
+        fileWriter = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(fileBlob.getFile()), StandardCharsets.UTF_8));
+        fileWriter.append(memory);
+        memory = null;
+    }
+
+    public boolean isSpooled() {
+        return fileBlob != null;
+    }
+
+    /**
+     * Closes the writer and returns the text as a blob, encoded in UTF-8
+     *
+     * @param mimeType
+     * @return the blob
+     * @throws IOException
+     * @since 10.10
+     */
+    public Blob getBlob(String mimeType) throws IOException {
+
+        close();
+        if (fileBlob == null) {
+            return new StringBlob(memory.toString(), mimeType);
+        }
+        fileBlob.setMimeType(mimeType);
+        fileBlob.setEncoding(StandardCharsets.UTF_8.name());
+        return fileBlob;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fileWriter != null) {
+            fileWriter.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (fileWriter != null) {
+            fileWriter.close();
+        }
+    }
+
+}
@@ -18,25 +18,64 @@
  */
 package com.nuxeo.fontoxml.servlet;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalTime;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.codec.digest.MessageDigestAlgorithms;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentRef;
 import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventService;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
 import org.nuxeo.ecm.platform.mimetype.MimetypeDetectionException;
 import org.nuxeo.ecm.platform.mimetype.MimetypeNotFoundException;
 import org.nuxeo.ecm.platform.mimetype.interfaces.MimetypeRegistry;
 import org.nuxeo.runtime.api.Framework;
 
+import com.nuxeo.fontoxml.cache.HierarchyCache;
+
 /**
  * @since 10.10
  */
 public class Utilities {
 
+    private static final Log log = LogFactory.getLog(Utilities.class);
+
+    // href (also used by xi:include) and conref attributes, the value without its #fragment
+    protected static final Pattern REFERENCE_PATTERN = Pattern.compile(
+            "\\b(?:href|conref)\\s*=\\s*[\"']([^\"'#]+)(?:#[^\"']*)?[\"']");
+
+    protected static final Pattern UUID_PATTERN = Pattern.compile(
+            "[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+
+    // When reading the XML by chunks, we keep this number of chars from the previous chunk, in case a reference was
+    // cut between 2 chunks
+    protected static final int REFERENCE_MAX_LENGTH = 1024;
+
+    protected static final int REFERENCE_CHUNK_SIZE = 64 * 1024;
+
     /**
      * Returns the mime-type of the blob.
      * <ul>
@@ -91,6 +130,39 @@ public class Utilities {
         return mimeType;
     }
 
+    /**
+     * Same as <code>getBlobMimeType</code> when only the mime type and file name of the blob are known (typically
+     * when they were fetched with a projection query): the content is not sniffed, the mime type is deduced from the
+     * file name
+     * 
+     * @param mimeType the mime type stored with the blob, can be null
+     * @param fileName the file name of the blob, can be null
+     * @return the mime type, never null
+     * @since 10.10
+     */
+    public static String getMimeType(String mimeType, String fileName) {
+
+        if (StringUtils.isNotBlank(mimeType)) {
+            return mimeType;
+        }
+
+        if (fileName != null) {
+            for (String ext : Constants.FONTO_DOCUMENT_FILE_EXTENSIONS_ARE_XML) {
+                if (fileName.endsWith(ext)) {
+                    return "text/xml";
+                }
+            }
+            MimetypeRegistry mimeRegistry = Framework.getService(MimetypeRegistry.class);
+            try {
+                mimeType = mimeRegistry.getMimetypeFromFilename(fileName);
+            } catch (MimetypeNotFoundException e) {
+                mimeType = null;
+            }
+        }
+
+        return StringUtils.defaultIfBlank(mimeType, "application/octet-stream");
+    }
+
     /**
      * This is based on the mime type. text/xml, application/xml, application/xhtml+xml, ...
      * 
@@ -104,13 +176,12 @@ public class Utilities {
             return false;
         }
 
-        String mimeType = Utilities.getBlobMimeType(blob, true);
-        if (mimeType.startsWith("application/xml") || mimeType.endsWith("xml")) {
-            return true;
-        }
+        return looksLikeXml(Utilities.getBlobMimeType(blob, true));
+    }
 
-        return false;
+    public static boolean looksLikeXml(String mimeType) {
 
+        return mimeType != null && (mimeType.startsWith("application/xml") || mimeType.endsWith("xml"));
     }
 
     /**
@@ -127,17 +198,74 @@ public class Utilities {
             return false;
         }
 
-        String mimeType = Utilities.getBlobMimeType(blob, true);
+        return canGetString(Utilities.getBlobMimeType(blob, true));
+    }
+
+    public static boolean canGetString(String mimeType) {
+
         /*
          * text/xml, text/plain, text/xml, text/css, text/sgml, ...
          * application/xml, application/xhtml+xml, ...
          */
-        if (mimeType.startsWith("text/") || Utilities.looksLikeXml(blob)) {
-            return true;
+        return mimeType != null && (mimeType.startsWith("text/") || looksLikeXml(mimeType));
+    }
+
+    /**
+     * Returns a reader on the blob content, using the blob encoding (UTF-8 if not set). Unlike
+     * <code>blob.getString()</code>, the content is not loaded in memory. The caller must close the reader.
+     * 
+     * @param blob
+     * @return a reader on the blob content
+     * @throws IOException
+     * @since 10.10
+     */
+    public static Reader getReader(Blob blob) throws IOException {
+
+        Charset charset = StandardCharsets.UTF_8;
+        String encoding = blob.getEncoding();
+        if (StringUtils.isNotBlank(encoding) && Charset.isSupported(encoding)) {
+            charset = Charset.forName(encoding);
         }
 
-        return false;
+        return new BufferedReader(new InputStreamReader(blob.getStream(), charset));
+    }
 
+    /**
+     * Returns the UUIDs of the documents referenced in the XML (href, conref, xi:include), in order of appearance.
+     * The blob is read by chunks, never loaded as a whole.
+     * <br/>
+     * Only the values that contain a Nuxeo UUID are returned (for example "e7ec0b42-...-3f3e0c6c3b1a" or
+     * "e7ec0b42-...-3f3e0c6c3b1a#topic_1"), other references (external links, relative paths) are ignored.
+     * 
+     * @param blob
+     * @return the set of referenced UUIDs
+     * @throws IOException
+     * @since 10.10
+     */
+    public static Set<String> extractReferencedDocumentIds(Blob blob) throws IOException {
+
+        Set<String> ids = new LinkedHashSet<>();
+
+        char[] buffer = new char[REFERENCE_CHUNK_SIZE];
+        StringBuilder window = new StringBuilder();
+        try (Reader reader = getReader(blob)) {
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                window.append(buffer, 0, count);
+                Matcher matcher = REFERENCE_PATTERN.matcher(window);
+                while (matcher.find()) {
+                    Matcher uuid = UUID_PATTERN.matcher(matcher.group(1));
+                    if (uuid.find()) {
+                        ids.add(uuid.group().toLowerCase());
+                    }
+                }
+                if (window.length() > REFERENCE_MAX_LENGTH) {
+                    window.delete(0, window.length() - REFERENCE_MAX_LENGTH);
+                }
+            }
+        }
+
+        return ids;
     }
 
     /**
@@ -151,11 +279,28 @@ public class Utilities {
      */
     public static boolean isOkForFontoGETDocument(Blob blob) {
 
-        if (!Utilities.canGetString(blob)) {
+        if (blob == null) {
+            return false;
+        }
+
+        return isOkForFontoGETDocument(Utilities.getBlobMimeType(blob, true), blob.getFilename());
+    }
+
+    /**
+     * Same as <code>isOkForFontoGETDocument(Blob)</code> when only the mime type and file name of the blob are known
+     * 
+     * @param mimeType
+     * @param fileName
+     * @return true is the blob can be fetched by Fonto using GET /document
+     * @since 10.10
+     */
+    public static boolean isOkForFontoGETDocument(String mimeType, String fileName) {
+
+        mimeType = getMimeType(mimeType, fileName);
+        if (!Utilities.canGetString(mimeType)) {
             return false;
         }
 
-        String fileName = blob.getFilename();
         if (fileName != null) {
             for (String fileExt : Constants.FONTO_DOCUMENT_FILE_EXTENSIONS) {
                 if (fileName.endsWith(fileExt)) {
@@ -165,7 +310,7 @@ public class Utilities {
         }
 
         // Last, if it's XML, then return true
-        return Utilities.looksLikeXml(blob);
+        return Utilities.looksLikeXml(mimeType);
     }
 
     /**
@@ -177,11 +322,28 @@ public class Utilities {
      */
     public static boolean isOkForFontoPOSTBrowseOutputSupport(Blob blob) {
 
-        if (!Utilities.canGetString(blob)) {
+        if (blob == null) {
+            return false;
+        }
+
+        return isOkForFontoPOSTBrowseOutputSupport(Utilities.getBlobMimeType(blob, true), blob.getFilename());
+    }
+
+    /**
+     * Same as <code>isOkForFontoPOSTBrowseOutputSupport(Blob)</code> when only the mime type and file name of the
+     * blob are known
+     * 
+     * @param mimeType
+     * @param fileName
+     * @return true is the blob can be fetched by Fonto using PÖST /browse and assetType "output-support"
+     * @since 10.10
+     */
+    public static boolean isOkForFontoPOSTBrowseOutputSupport(String mimeType, String fileName) {
+
+        if (!Utilities.canGetString(getMimeType(mimeType, fileName))) {
             return false;
         }
 
-        String fileName = blob.getFilename();
         if (fileName != null) {
             for (String fileExt : Constants.FONTO_OUTPUTSUPPORT_FILE_EXTENSIONS) {
                 if (fileName.endsWith(fileExt)) {
@@ -192,9 +354,37 @@ public class Utilities {
 
         return false;
     }
-    
+
+    /**
+     * Formats a video duration the way it is displayed in the browse dialog ("0h01m05s" for example)
+     * 
+     * @param seconds
+     * @return the formatted duration
+     * @since 10.10
+     */
+    public static String formatDuration(long seconds) {
+
+        // Hopping the duration is less than 24 hours :-)
+        LocalTime d = LocalTime.ofSecondOfDay(seconds);
+        StringBuilder buf = new StringBuilder(9);
+        int h = d.getHour();
+        int m = d.getMinute();
+        int s = d.getSecond();
+        buf.append(h < 10 ? "0h" : "h")
+           .append(h)
+           .append(m < 10 ? "0m" : "m")
+           .append(m)
+           .append(s < 10 ? "0s" : "s")
+           .append(s);
+
+        return buf.toString();
+    }
+
     /**
      * Returns a JSON array of the path to the doc, with properties expected by Fonto (id, label, type)
+     * <br/>
+     * The ancestors are read from the <code>HierarchyCache</code>, so documents of the same folder are resolved
+     * once.
      * 
      * @param doc
      * @return the JSONArray containing the hierarchy (the path + details)
@@ -202,25 +392,168 @@ public class Utilities {
      * @since 10.10
      */
     public static JSONArray buildHierarchy(DocumentModel doc) throws JSONException {
-        
+
+        return buildHierarchy(doc.getCoreSession(), doc.getParentRef(), doc.getId(), doc.getTitle(), doc.isFolder());
+    }
+
+    /**
+     * Same as <code>buildHierarchy(DocumentModel)</code>, when the document is not loaded (we just need its parent,
+     * its id, its title and to know if it is a folder)
+     * 
+     * @param session
+     * @param parentRef
+     * @param docId
+     * @param title
+     * @param isFolder
+     * @return the JSONArray containing the hierarchy (the path + details)
+     * @throws JSONException
+     * @since 10.10
+     */
+    public static JSONArray buildHierarchy(CoreSession session, DocumentRef parentRef, String docId, String title,
+            boolean isFolder) throws JSONException {
+
+        return buildHierarchy(HierarchyCache.getInstance().getAncestors(session, parentRef), docId, title, isFolder);
+    }
+
+    /**
+     * Same as <code>buildHierarchy(CoreSession, DocumentRef, String, String, boolean)</code>, when the ancestors were
+     * already fetched. Does not use a session, so it can be called from any thread.
+     * 
+     * @param ancestors
+     * @param docId
+     * @param title
+     * @param isFolder
+     * @return the JSONArray containing the hierarchy (the path + details)
+     * @throws JSONException
+     * @since 10.10
+     */
+    public static JSONArray buildHierarchy(List<HierarchyCache.Ancestor> ancestors, String docId, String title,
+            boolean isFolder) throws JSONException {
+
         JSONArray array = new JSONArray();
-        
-        // getParentDocuments also returns the document itseld
-        List<DocumentModel> parents = doc.getCoreSession().getParentDocuments(doc.getRef());
-        for(DocumentModel aParent : parents) {
-            JSONObject obj = new JSONObject();
-            obj.put("id", aParent.getId());
-            obj.put("label", aParent.getTitle());
-            if(aParent.isFolder()) {
-                obj.put("type", Constants.FONTO_TYPE_FOLDER);
-            } else {
-                obj.put("type", Constants.FONTO_TYPE_FILE);
-            }
-            
-            array.put(obj);
+
+        for (HierarchyCache.Ancestor ancestor : ancestors) {
+            array.put(hierarchyItem(ancestor.getId(), ancestor.getLabel(), ancestor.isFolder()));
         }
-        
+        // Like getParentDocuments, the hierarchy ends with the document itself
+        array.put(hierarchyItem(docId, title, isFolder));
+
         return array;
     }
 
+    protected static JSONObject hierarchyItem(String id, String label, boolean isFolder) throws JSONException {
+
+        JSONObject obj = new JSONObject();
+        obj.put("id", id);
+        obj.put("label", label);
+        obj.put("type", isFolder ? Constants.FONTO_TYPE_FOLDER : Constants.FONTO_TYPE_FILE);
+
+        return obj;
+    }
+
+    /**
+     * Checks if the new XML (a UTF-8 blob) is the content of the stored blob without reading the stored blob: compares
+     * the lengths, then the digest of the XML (calculated with the algorithm of the stored digest) with the stored
+     * digest.
+     * <br/>
+     * Returns false when it can't tell (no digest, unknown algorithm, blob not stored as UTF-8)
+     * 
+     * @param blob the stored blob
+     * @param xmlContent the new XML
+     * @return true if the blob has the same content
+     * @since 10.10
+     */
+    public static boolean isSameContent(Blob blob, Blob xmlContent) {
+
+        if (blob == null || xmlContent == null) {
+            return false;
+        }
+        String encoding = blob.getEncoding();
+        if (StringUtils.isNotBlank(encoding) && !StandardCharsets.UTF_8.name().equalsIgnoreCase(encoding)) {
+            return false;
+        }
+        String digest = blob.getDigest();
+        String algorithm = StringUtils.isBlank(digest) ? null : getDigestAlgorithm(blob);
+        if (algorithm == null) {
+            return false;
+        }
+        if (blob.getLength() >= 0 && blob.getLength() != xmlContent.getLength()) {
+            return false;
+        }
+
+        try (InputStream in = xmlContent.getStream()) {
+            return digest.equalsIgnoreCase(new DigestUtils(algorithm).digestAsHex(in));
+        } catch (IOException e) {
+            throw new NuxeoException("Failed to calculate the digest of the XML", e);
+        }
+    }
+
+    /*
+     * The algorithm of the blob digest, as given by its provider, else guessed from the length of the digest (like
+     * the default blob providers do). Null if unknown.
+     */
+    protected static String getDigestAlgorithm(Blob blob) {
+
+        String algorithm = blob.getDigestAlgorithm();
+        if (StringUtils.isNotBlank(algorithm)) {
+            return algorithm;
+        }
+        switch (blob.getDigest().length()) {
+        case 32:
+            return MessageDigestAlgorithms.MD5;
+        case 40:
+            return MessageDigestAlgorithms.SHA_1;
+        case 64:
+            return MessageDigestAlgorithms.SHA_256;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the XML of the document (file:content, keeping its file name), saves it and raises the
+     * <code>documentModifiedByFontoXML</code> event so configuration can add some logic.
+     * <br/>
+     * The event has the <code>isFontoAutoSave</code> and <code>fontoDigest</code> (digest of the saved blob)
+     * properties. To not slow down the save, listeners should be declared post-commit and async: they then run
+     * after the transaction is committed, out of the request.
+     * <br/>
+     * No version is created: Fonto can send a PUT /document very often when autosave is on.
+     * 
+     * @param session
+     * @param doc
+     * @param xmlContent the new XML, a UTF-8 blob (see <code>SpoolingWriter</code>)
+     * @param autosave true if the content was sent by an autosave of Fonto
+     * @return the saved document
+     * @since 10.10
+     */
+    public static DocumentModel saveXMLContent(CoreSession session, DocumentModel doc, Blob xmlContent,
+            boolean autosave) {
+
+        Blob blob = (Blob) doc.getPropertyValue("file:content");
+        if (isSameContent(blob, xmlContent)) {
+            // Autosave after a cursor move, undo/redo, ...: no write, no new blob, no event
+            if (log.isDebugEnabled()) {
+                log.debug(doc.getId() + " not saved, the content did not change");
+            }
+            return doc;
+        }
+        xmlContent.setFilename(blob == null ? null : blob.getFilename());
+        doc.setPropertyValue("file:content", (Serializable) xmlContent);
+        doc = session.saveDocument(doc);
+        session.save();
+
+        // The flags are event properties, so post-commit and async listeners get them (they receive a copy of the
+        // event, without the context data of the document). Also in the document, for existing synchronous listeners
+        Blob savedBlob = (Blob) doc.getPropertyValue("file:content");
+        DocumentEventContext eventCtx = new DocumentEventContext(session, session.getPrincipal(), doc);
+        eventCtx.setProperty(Constants.EVENT_CONTEXT_IS_AUTOSAVE, autosave);
+        eventCtx.setProperty(Constants.EVENT_CONTEXT_DIGEST, savedBlob == null ? null : savedBlob.getDigest());
+        doc.putContextData(Constants.EVENT_CONTEXT_IS_AUTOSAVE, autosave);
+        Event eventToSend = eventCtx.newEvent(Constants.EVENT_DOC_MODIFIED_BY_FONTOWML);
+        Framework.getService(EventService.class).fireEvent(eventToSend);
+
+        return doc;
+    }
+
 }
@@ -0,0 +1,123 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package com.nuxeo.fontoxml.work;
+
+import static com.nuxeo.fontoxml.servlet.Constants.VARIANT_THUMBNAIL;
+import static com.nuxeo.fontoxml.servlet.Constants.VARIANT_WEB;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.work.AbstractWork;
+import org.nuxeo.ecm.core.work.api.WorkManager;
+import org.nuxeo.runtime.api.Framework;
+
+import com.nuxeo.fontoxml.cache.PreviewCache;
+import com.nuxeo.fontoxml.servlet.AssetPreview;
+
+/**
+ * Calculates the thumbnail and web previews of an asset ahead of time and stores them in the <code>PreviewCache</code>,
+ * so the first browse after an upload does not have to wait for them.
+ * <br/>
+ * The cache key is the digest of the image the previews come from, so a variant already cached for this digest is
+ * up to date and is not recalculated (the work can be scheduled again for the same image, e.g. when the thumbnail is
+ * recalculated without changing).
+ * <br/>
+ * The work runs on any node of a cluster, and the <code>PreviewCache</code> belongs to each node: the previews are
+ * available to the other nodes only if the disk tier is in a shared folder (see the <code>previewDirectory</code>
+ * configuration). Otherwise, pregeneration only helps the node that ran the work, the others calculate the previews
+ * on their first request as if it was disabled.
+ *
+ * @since 10.10
+ */
+public class PreviewGenerationWork extends AbstractWork {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Log log = LogFactory.getLog(PreviewGenerationWork.class);
+
+    public static final String CATEGORY = "fontoxmlPreview";
+
+    protected static final String[] VARIANTS = { VARIANT_THUMBNAIL, VARIANT_WEB };
+
+    public PreviewGenerationWork(String repositoryName, String docId) {
+        // Same id for the same document => not scheduled twice
+        super(CATEGORY + ":" + repositoryName + ":" + docId);
+        setDocument(repositoryName, docId);
+    }
+
+    /**
+     * Schedules the work after the current transaction commits, unless it is already scheduled for this document
+     *
+     * @param repositoryName
+     * @param docId
+     * @since 10.10
+     */
+    public static void schedule(String repositoryName, String docId) {
+
+        WorkManager workManager = Framework.getService(WorkManager.class);
+        workManager.schedule(new PreviewGenerationWork(repositoryName, docId), WorkManager.Scheduling.IF_NOT_SCHEDULED,
+                true);
+    }
+
+    @Override
+    public String getCategory() {
+        return CATEGORY;
+    }
+
+    @Override
+    public String getTitle() {
+        return "FontoXML previews: " + docId;
+    }
+
+    @Override
+    public void work() {
+
+        openSystemSession();
+        IdRef docRef = new IdRef(docId);
+        if (!session.exists(docRef)) {
+            return;
+        }
+        DocumentModel doc = session.getDocument(docRef);
+        String digest = AssetPreview.getCacheDigest(doc);
+        if (digest == null) {
+            // No thumbnail yet (or no digest) => nothing to cache, we will be scheduled again when it is calculated
+            return;
+        }
+
+        PreviewCache cache = PreviewCache.getInstance();
+        for (String variant : VARIANTS) {
+            if (cache.get(digest, variant) != null) {
+                continue;
+            }
+            setStatus("Generating " + variant);
+            Blob preview = AssetPreview.computePreview(session, doc, variant);
+            if (preview != null) {
+                cache.put(digest, variant, preview);
+            }
+        }
+        setStatus("Done");
+        if (log.isDebugEnabled()) {
+            log.debug("Previews generated for " + docId);
+        }
+    }
+
+}
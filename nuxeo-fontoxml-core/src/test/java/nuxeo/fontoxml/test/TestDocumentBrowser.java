@@ -0,0 +1,498 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.fontoxml.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.automation.test.AutomationFeature;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
+import org.nuxeo.ecm.core.bulk.BulkService;
+import org.nuxeo.ecm.core.bulk.message.BulkCommand;
+import org.nuxeo.ecm.core.bulk.message.BulkStatus;
+import org.nuxeo.ecm.core.test.DefaultRepositoryInit;
+import org.nuxeo.ecm.core.test.annotations.Granularity;
+import org.nuxeo.ecm.core.test.annotations.RepositoryConfig;
+import org.nuxeo.ecm.platform.tag.TagService;
+import org.nuxeo.runtime.pubsub.PubSubService;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.TransactionalFeature;
+
+import com.nuxeo.fontoxml.FontoXMLClassifier;
+import com.nuxeo.fontoxml.bulk.ClassifyAction;
+import com.nuxeo.fontoxml.cache.BrowseCache;
+import com.nuxeo.fontoxml.cache.HierarchyCache;
+import com.nuxeo.fontoxml.servlet.Constants;
+import com.nuxeo.fontoxml.servlet.DocumentBrowser;
+
+import nuxeo.fontoxml.test.utils.MockedServlet;
+
+@RunWith(FeaturesRunner.class)
+@Features(AutomationFeature.class)
+@RepositoryConfig(init = DefaultRepositoryInit.class, cleanup = Granularity.METHOD)
+@Deploy("org.nuxeo.ecm.platform.types")
+@Deploy("org.nuxeo.ecm.platform.picture.core")
+@Deploy("org.nuxeo.ecm.platform.tag")
+@Deploy("nuxeo.fontoxml.nuxeo-fontoxml-core")
+public class TestDocumentBrowser extends MockedServlet {
+
+    @Inject
+    protected CoreSession session;
+
+    @Inject
+    protected TransactionalFeature transactionalFeature;
+
+    @Inject
+    protected TagService tagService;
+
+    @Inject
+    protected PubSubService pubSubService;
+
+    @Inject
+    protected BulkService bulkService;
+
+    protected DocumentModel createFolderWithXMLDocs(int count) {
+
+        DocumentModel folder = session.createDocumentModel("/", "folder", "Folder");
+        folder.setPropertyValue("dc:title", "Folder");
+        folder = session.createDocument(folder);
+        for (int i = 0; i < count; i++) {
+            DocumentModel doc = session.createDocumentModel(folder.getPathAsString(), "doc-" + i, "File");
+            doc.setPropertyValue("dc:title", "Doc " + i);
+            Blob blob = new StringBlob("<doc>" + i + "</doc>", Constants.MIME_TYPE_XML);
+            blob.setFilename("doc-" + i + ".xml");
+            doc.setPropertyValue("file:content", (Serializable) blob);
+            session.createDocument(doc);
+        }
+        session.save();
+        transactionalFeature.nextTransaction();
+
+        return folder;
+    }
+
+    protected JSONObject browse(String folderId, String assetType, int limit, int offset) throws Exception {
+
+        return browse(folderId, assetType, limit, offset, null);
+    }
+
+    protected JSONObject browse(String folderId, String assetType, int limit, int offset, JSONObject query)
+            throws Exception {
+
+        JSONObject body = new JSONObject();
+        body.put(Constants.PARAM_CONTEXT, new JSONObject());
+        body.put("assetTypes", new JSONArray().put(assetType));
+        body.put("resultTypes", new JSONArray().put(Constants.FONTO_TYPE_FILE));
+        body.put(Constants.PARAM_FOLDER_ID, folderId);
+        body.put("limit", limit);
+        body.put("offset", offset);
+        if (query != null) {
+            body.put("query", query);
+        }
+
+        run("POST", Constants.PATH_BROWSE, null, body.toString(), true);
+        verify(mockResponse).setStatus(HttpServletResponse.SC_OK);
+
+        return new JSONObject(responseOutputStream.toString("UTF-8"));
+    }
+
+    protected JSONObject browseWithCursor(String folderId, int limit, String cursor) throws Exception {
+
+        JSONObject body = new JSONObject();
+        body.put(Constants.PARAM_CONTEXT, new JSONObject());
+        body.put("assetTypes", new JSONArray().put(Constants.FONTO_TYPE_DOCUMENT));
+        body.put("resultTypes", new JSONArray().put(Constants.FONTO_TYPE_FILE));
+        body.put(Constants.PARAM_FOLDER_ID, folderId);
+        body.put("limit", limit);
+        body.put(Constants.PARAM_CURSOR, cursor == null ? "" : cursor);
+
+        run("POST", Constants.PATH_BROWSE, null, body.toString(), true);
+        verify(mockResponse).setStatus(HttpServletResponse.SC_OK);
+
+        return new JSONObject(responseOutputStream.toString("UTF-8"));
+    }
+
+    @Test
+    public void shouldBrowseOnePage() throws Exception {
+
+        DocumentModel folder = createFolderWithXMLDocs(5);
+
+        JSONObject result = browse(folder.getId(), Constants.FONTO_TYPE_DOCUMENT, 2, 2);
+        assertEquals(5, result.getInt("totalItemCount"));
+        JSONArray items = result.getJSONArray("items");
+        assertEquals(2, items.length());
+        // Ordered by title
+        assertEquals("Doc 2", items.getJSONObject(0).getString("label"));
+        assertEquals("Doc 3", items.getJSONObject(1).getString("label"));
+
+        // Last page
+        result = browse(folder.getId(), Constants.FONTO_TYPE_DOCUMENT, 2, 4);
+        assertEquals(5, result.getInt("totalItemCount"));
+        assertEquals(1, result.getJSONArray("items").length());
+    }
+
+    @Test
+    public void shouldSendItemPropertiesFromProjection() throws Exception {
+
+        DocumentModel folder = createFolderWithXMLDocs(1);
+
+        JSONObject result = browse(folder.getId(), Constants.FONTO_TYPE_DOCUMENT, 10, 0);
+        JSONObject item = result.getJSONArray("items").getJSONObject(0);
+        assertEquals("Doc 0", item.getString(Constants.PARAM_LABEL));
+        assertEquals(Constants.FONTO_TYPE_DOCUMENT, item.getString(Constants.PARAM_TYPE));
+
+        DocumentModel doc = session.getChild(folder.getRef(), "doc-0");
+        JSONObject metadata = item.getJSONObject(Constants.PARAM_METADATA);
+        JSONObject properties = metadata.getJSONObject(Constants.PARAM_PROPERTIES);
+        assertEquals(doc.getVersionLabel(), properties.getString("version"));
+        assertEquals(doc.getCurrentLifeCycleState(), properties.getString("state"));
+        assertEquals("12 bytes", properties.getString("fileSize"));
+        JSONArray hierarchy = metadata.getJSONArray(Constants.PARAM_HIERARCHY);
+        assertEquals("Folder", hierarchy.getJSONObject(hierarchy.length() - 2).getString("label"));
+        assertEquals("Doc 0", hierarchy.getJSONObject(hierarchy.length() - 1).getString("label"));
+    }
+
+    @Test
+    public void shouldSendTagsOfAllItems() throws Exception {
+
+        DocumentModel folder = createFolderWithXMLDocs(3);
+        DocumentModel doc0 = session.getChild(folder.getRef(), "doc-0");
+        DocumentModel doc2 = session.getChild(folder.getRef(), "doc-2");
+        tagService.tag(session, doc0.getId(), "alpha");
+        tagService.tag(session, doc0.getId(), "beta");
+        tagService.tag(session, doc2.getId(), "gamma");
+        session.save();
+        transactionalFeature.nextTransaction();
+
+        JSONArray items = browse(folder.getId(), Constants.FONTO_TYPE_DOCUMENT, 10, 0).getJSONArray("items");
+        assertEquals(3, items.length());
+        JSONObject props0 = items.getJSONObject(0)
+                                 .getJSONObject(Constants.PARAM_METADATA)
+                                 .getJSONObject(Constants.PARAM_PROPERTIES);
+        assertEquals(new HashSet<>(Arrays.asList("alpha", "beta")),
+                new HashSet<>(Arrays.asList(props0.getString("tags").split(","))));
+        JSONObject props1 = items.getJSONObject(1)
+                                 .getJSONObject(Constants.PARAM_METADATA)
+                                 .getJSONObject(Constants.PARAM_PROPERTIES);
+        assertFalse(props1.has("tags"));
+        JSONObject props2 = items.getJSONObject(2)
+                                 .getJSONObject(Constants.PARAM_METADATA)
+                                 .getJSONObject(Constants.PARAM_PROPERTIES);
+        assertEquals("gamma", props2.getString("tags"));
+    }
+
+    @Test
+    public void shouldFilterAssetTypesInTheQuery() throws Exception {
+
+        DocumentModel folder = createFolderWithXMLDocs(3);
+        // Not a Fonto document, sorted first
+        DocumentModel other = session.createDocumentModel(folder.getPathAsString(), "other", "File");
+        other.setPropertyValue("dc:title", "A binary file");
+        Blob blob = new StringBlob("not xml", "application/octet-stream");
+        blob.setFilename("other.bin");
+        other.setPropertyValue("file:content", (Serializable) blob);
+        session.createDocument(other);
+        session.save();
+        transactionalFeature.nextTransaction();
+
+        // Exact count and full pages, the binary file is not returned
+        JSONObject result = browse(folder.getId(), Constants.FONTO_TYPE_DOCUMENT, 2, 0);
+        assertEquals(3, result.getInt("totalItemCount"));
+        JSONArray items = result.getJSONArray("items");
+        assertEquals(2, items.length());
+        assertEquals("Doc 0", items.getJSONObject(0).getString(Constants.PARAM_LABEL));
+
+        // All files
+        result = browse(folder.getId(), Constants.FONTO_TYPE_FILE, 10, 0);
+        assertEquals(4, result.getInt("totalItemCount"));
+        assertEquals("A binary file", result.getJSONArray("items").getJSONObject(0).getString(Constants.PARAM_LABEL));
+
+        // Nothing of that kind
+        result = browse(folder.getId(), Constants.FONTO_TYPE_IMAGE, 10, 0);
+        assertEquals(0, result.getInt("totalItemCount"));
+    }
+
+    @Test
+    public void shouldClassifyDocumentsWhenSaved() throws Exception {
+
+        DocumentModel folder = createFolderWithXMLDocs(1);
+        DocumentModel doc = session.getChild(folder.getRef(), "doc-0");
+        assertTrue(doc.hasFacet(FontoXMLClassifier.FACET));
+        assertEquals(Constants.FONTO_TYPE_DOCUMENT, doc.getPropertyValue(FontoXMLClassifier.XPATH_KIND));
+
+        // Changing the blob changes the kind
+        Blob blob = new StringBlob("body {}", "text/css");
+        blob.setFilename("style.css");
+        doc.setPropertyValue("file:content", (Serializable) blob);
+        doc = session.saveDocument(doc);
+        session.save();
+        transactionalFeature.nextTransaction();
+        doc = session.getDocument(doc.getRef());
+        assertEquals(Constants.FONTO_TYPE_OUTPUT_SUPPORT, doc.getPropertyValue(FontoXMLClassifier.XPATH_KIND));
+
+        // The browse query uses it
+        assertEquals(0, browse(folder.getId(), Constants.FONTO_TYPE_DOCUMENT, 10, 0).getInt("totalItemCount"));
+        JSONObject result = browse(folder.getId(), Constants.FONTO_TYPE_OUTPUT_SUPPORT, 10, 0);
+        assertEquals(1, result.getInt("totalItemCount"));
+        assertEquals(Constants.FONTO_TYPE_FILE,
+                result.getJSONArray("items").getJSONObject(0).getString(Constants.PARAM_TYPE));
+    }
+
+    @Test
+    @Deploy("nuxeo.fontoxml.nuxeo-fontoxml-core:classification-disabled.xml")
+    public void shouldClassifyExistingDocumentsWithBulkAction() throws Exception {
+
+        DocumentModel folder = createFolderWithXMLDocs(3);
+        for (DocumentModel doc : session.getChildren(folder.getRef())) {
+            assertFalse(doc.hasFacet(FontoXMLClassifier.FACET));
+        }
+
+        String nxql = "SELECT * FROM Document WHERE ecm:parentId = '" + folder.getId() + "'";
+        BulkCommand command = new BulkCommand.Builder(ClassifyAction.ACTION_NAME, nxql,
+                session.getPrincipal().getName()).repository(session.getRepositoryName()).build();
+        String commandId = bulkService.submit(command);
+        assertTrue(bulkService.await(commandId, Duration.ofSeconds(60)));
+        assertEquals(BulkStatus.State.COMPLETED, bulkService.getStatus(commandId).getState());
+        transactionalFeature.nextTransaction();
+
+        for (DocumentModel doc : session.getChildren(folder.getRef())) {
+            assertTrue(doc.hasFacet(FontoXMLClassifier.FACET));
+            assertEquals(Constants.FONTO_TYPE_DOCUMENT, doc.getPropertyValue(FontoXMLClassifier.XPATH_KIND));
+        }
+        assertEquals(3, browse(folder.getId(), Constants.FONTO_TYPE_DOCUMENT, 10, 0).getInt("totalItemCount"));
+    }
+
+    @Test
+    @Deploy("nuxeo.fontoxml.nuxeo-fontoxml-core:classification-disabled.xml")
+    public void shouldUseClassificationRulesForUnclassifiedDocuments() throws Exception {
+
+        DocumentModel folder = session.createDocumentModel("/", "folder", "Folder");
+        folder = session.createDocument(folder);
+        DocumentModel doc = session.createDocumentModel(folder.getPathAsString(), "topic", "File");
+        Blob blob = new StringBlob("<topic/>", "application/xml");
+        blob.setFilename("topic.dita");
+        doc.setPropertyValue("file:content", (Serializable) blob);
+        doc = session.createDocument(doc);
+        transactionalFeature.nextTransaction();
+        assertFalse(session.getDocument(doc.getRef()).hasFacet(FontoXMLClassifier.FACET));
+
+        // Same type as once classified
+        JSONObject result = browse(folder.getId(), Constants.FONTO_TYPE_DOCUMENT, 10, 0);
+        assertEquals(1, result.getInt("totalItemCount"));
+        assertEquals(FontoXMLClassifier.toFontoType(FontoXMLClassifier.computeKind(doc)),
+                result.getJSONArray("items").getJSONObject(0).getString(Constants.PARAM_TYPE));
+        assertEquals(Constants.FONTO_TYPE_DOCUMENT,
+                result.getJSONArray("items").getJSONObject(0).getString(Constants.PARAM_TYPE));
+    }
+
+    @Test
+    public void shouldInvalidateCachedPagesWhenAChildChanges() throws Exception {
+
+        DocumentModel folder = createFolderWithXMLDocs(2);
+        assertEquals(2, browse(folder.getId(), Constants.FONTO_TYPE_DOCUMENT, 10, 0).getInt("totalItemCount"));
+
+        // Cached page, same result
+        assertEquals(2, browse(folder.getId(), Constants.FONTO_TYPE_DOCUMENT, 10, 0).getInt("totalItemCount"));
+
+        // New child => new page
+        DocumentModel doc = session.createDocumentModel(folder.getPathAsString(), "new-doc", "File");
+        doc.setPropertyValue("dc:title", "New Doc");
+        Blob blob = new StringBlob("<doc/>", Constants.MIME_TYPE_XML);
+        blob.setFilename("new-doc.xml");
+        doc.setPropertyValue("file:content", (Serializable) blob);
+        doc = session.createDocument(doc);
+        session.save();
+        transactionalFeature.nextTransaction();
+        assertEquals(3, browse(folder.getId(), Constants.FONTO_TYPE_DOCUMENT, 10, 0).getInt("totalItemCount"));
+
+        // Renamed child
+        doc.setPropertyValue("dc:title", "A renamed doc");
+        session.saveDocument(doc);
+        session.save();
+        transactionalFeature.nextTransaction();
+        JSONArray items = browse(folder.getId(), Constants.FONTO_TYPE_DOCUMENT, 10, 0).getJSONArray("items");
+        assertEquals("A renamed doc", items.getJSONObject(0).getString(Constants.PARAM_LABEL));
+    }
+
+    @Test
+    public void shouldInvalidateCachedPagesFromOtherNodes() throws Exception {
+
+        DocumentModel folder = createFolderWithXMLDocs(1);
+        browse(folder.getId(), Constants.FONTO_TYPE_DOCUMENT, 10, 0);
+
+        BrowseCache cache = BrowseCache.getInstance();
+        long generation = cache.getGeneration();
+        String message = "other-node/" + session.getRepositoryName() + "/" + folder.getId();
+        pubSubService.publish(BrowseCache.TOPIC, message.getBytes(StandardCharsets.UTF_8));
+        assertNotEquals(generation, cache.getGeneration());
+    }
+
+    @Test
+    public void shouldInvalidateHierarchiesAfterCommit() throws Exception {
+
+        DocumentModel folder = createFolderWithXMLDocs(1);
+        HierarchyCache cache = HierarchyCache.getInstance();
+        assertEquals("Folder", cache.getAncestors(session, folder.getRef()).get(0).getLabel());
+
+        // Renamed: the cache is invalidated once committed only, else a request could cache the old title again
+        folder.setPropertyValue("dc:title", "Renamed folder");
+        session.saveDocument(folder);
+        session.save();
+        assertEquals("Folder", cache.getAncestors(session, folder.getRef()).get(0).getLabel());
+        transactionalFeature.nextTransaction();
+        assertEquals("Renamed folder", cache.getAncestors(session, folder.getRef()).get(0).getLabel());
+
+        // Not committed yet, but invalidated by another node
+        folder.setPropertyValue("dc:title", "Renamed again");
+        session.saveDocument(folder);
+        session.save();
+        assertEquals("Renamed folder", cache.getAncestors(session, folder.getRef()).get(0).getLabel());
+        pubSubService.publish(HierarchyCache.TOPIC, "other-node/*".getBytes(StandardCharsets.UTF_8));
+        assertEquals("Renamed again", cache.getAncestors(session, folder.getRef()).get(0).getLabel());
+    }
+
+    @Test
+    public void shouldBrowseWithCursor() throws Exception {
+
+        DocumentModel folder = createFolderWithXMLDocs(5);
+        // Sent after the titled ones
+        DocumentModel untitled = session.createDocumentModel(folder.getPathAsString(), "untitled", "File");
+        Blob blob = new StringBlob("<doc/>", Constants.MIME_TYPE_XML);
+        blob.setFilename("untitled.xml");
+        untitled.setPropertyValue("file:content", (Serializable) blob);
+        untitled = session.createDocument(untitled);
+        session.save();
+        transactionalFeature.nextTransaction();
+
+        List<String> ids = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            JSONObject result = browseWithCursor(folder.getId(), 2, cursor);
+            assertEquals(6, result.getInt("totalItemCount"));
+            JSONArray items = result.getJSONArray("items");
+            for (int i = 0; i < items.length(); i++) {
+                ids.add(items.getJSONObject(i).getString(Constants.PARAM_ID));
+            }
+            cursor = result.isNull(Constants.PARAM_NEXT_CURSOR) ? null
+                    : result.getString(Constants.PARAM_NEXT_CURSOR);
+            pages++;
+        } while (cursor != null && pages < 10);
+
+        assertEquals(6, ids.size());
+        assertEquals(6, new HashSet<>(ids).size());
+        assertEquals(session.getChild(folder.getRef(), "doc-0").getId(), ids.get(0));
+        assertEquals(untitled.getId(), ids.get(5));
+    }
+
+    @Test
+    public void shouldRejectInvalidCursor() throws Exception {
+
+        DocumentModel folder = createFolderWithXMLDocs(1);
+
+        JSONObject body = new JSONObject();
+        body.put(Constants.PARAM_CONTEXT, new JSONObject());
+        body.put("assetTypes", new JSONArray().put(Constants.FONTO_TYPE_DOCUMENT));
+        body.put("resultTypes", new JSONArray().put(Constants.FONTO_TYPE_FILE));
+        body.put(Constants.PARAM_FOLDER_ID, folder.getId());
+        body.put(Constants.PARAM_CURSOR, "not a cursor");
+
+        run("POST", Constants.PATH_BROWSE, null, body.toString(), true);
+        verify(mockResponse).sendError(eq(HttpServletResponse.SC_BAD_REQUEST), anyString());
+    }
+
+    @Test
+    public void shouldSearchInTheSubtree() throws Exception {
+
+        DocumentModel folder = createFolderWithXMLDocs(3);
+        DocumentModel sub = session.createDocumentModel(folder.getPathAsString(), "sub", "Folder");
+        sub.setPropertyValue("dc:title", "Sub");
+        sub = session.createDocument(sub);
+        DocumentModel deep = session.createDocumentModel(sub.getPathAsString(), "deep", "File");
+        deep.setPropertyValue("dc:title", "Doc 1 bis");
+        Blob blob = new StringBlob("<doc/>", Constants.MIME_TYPE_XML);
+        blob.setFilename("deep.xml");
+        deep.setPropertyValue("file:content", (Serializable) blob);
+        deep = session.createDocument(deep);
+        tagService.tag(session, deep.getId(), "alpha");
+        session.save();
+        transactionalFeature.nextTransaction();
+
+        // Title prefix, case insensitive
+        JSONObject result = browse(folder.getId(), Constants.FONTO_TYPE_DOCUMENT, 10, 0,
+                new JSONObject().put("title", "doc 1"));
+        assertEquals(2, result.getInt("totalItemCount"));
+        JSONArray items = result.getJSONArray("items");
+        assertEquals("Doc 1", items.getJSONObject(0).getString(Constants.PARAM_LABEL));
+        assertEquals("Doc 1 bis", items.getJSONObject(1).getString(Constants.PARAM_LABEL));
+
+        // Tags
+        result = browse(folder.getId(), Constants.FONTO_TYPE_DOCUMENT, 10, 0,
+                new JSONObject().put("tags", new JSONArray().put("alpha")));
+        assertEquals(1, result.getInt("totalItemCount"));
+        assertEquals(deep.getId(), result.getJSONArray("items").getJSONObject(0).getString(Constants.PARAM_ID));
+
+        // LIKE wildcards are not wildcards
+        result = browse(folder.getId(), Constants.FONTO_TYPE_DOCUMENT, 10, 0, new JSONObject().put("title", "%"));
+        assertEquals(0, result.getInt("totalItemCount"));
+    }
+
+    @Test
+    @Deploy("nuxeo.fontoxml.nuxeo-fontoxml-core:browse-in-parallel.xml")
+    public void shouldBuildItemsInParallelInQueryOrder() throws Exception {
+
+        DocumentModel folder = createFolderWithXMLDocs(7);
+
+        JSONObject result = browse(folder.getId(), Constants.FONTO_TYPE_DOCUMENT, DocumentBrowser.ALL_RESULTS, 0);
+        assertEquals(7, result.getInt("totalItemCount"));
+        JSONArray items = result.getJSONArray("items");
+        assertEquals(7, items.length());
+        for (int i = 0; i < 7; i++) {
+            JSONObject item = items.getJSONObject(i);
+            assertEquals("Doc " + i, item.getString(Constants.PARAM_LABEL));
+            JSONArray hierarchy = item.getJSONObject(Constants.PARAM_METADATA).getJSONArray(Constants.PARAM_HIERARCHY);
+            assertEquals("Folder", hierarchy.getJSONObject(hierarchy.length() - 2).getString("label"));
+        }
+    }
+
+}
@@ -18,11 +18,24 @@
  */
 package nuxeo.fontoxml.test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.File;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 
@@ -30,10 +43,15 @@ import org.apache.commons.lang3.StringUtils;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.nuxeo.common.utils.FileUtils;
 import org.nuxeo.ecm.automation.test.AutomationFeature;
 import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
 import org.nuxeo.ecm.core.test.DefaultRepositoryInit;
 import org.nuxeo.ecm.core.test.annotations.Granularity;
 import org.nuxeo.ecm.core.test.annotations.RepositoryConfig;
@@ -48,7 +66,12 @@ import org.nuxeo.runtime.test.runner.TransactionalFeature;
 import com.nuxeo.fontoxml.FontoXMLConfigDescriptor;
 import com.nuxeo.fontoxml.FontoXMLService;
 import com.nuxeo.fontoxml.FontoXMLServiceImpl;
+import com.nuxeo.fontoxml.cache.PreviewCache;
+import com.nuxeo.fontoxml.servlet.AssetPreview;
+import com.nuxeo.fontoxml.servlet.Constants;
+import com.nuxeo.fontoxml.work.PreviewGenerationWork;
 
+import nuxeo.fontoxml.test.utils.TestMockersAndFakers;
 import nuxeo.fontoxml.test.utils.Utilities;
 
 @RunWith(FeaturesRunner.class)
@@ -208,4 +231,186 @@ public class TestFontoXMLService {
         assertEquals(mainBlob.getMimeType(), result.getMimeType());
 
     }
+
+    @Test
+    @Deploy("nuxeo.fontoxml.nuxeo-fontoxml-core:thumbnail-factory.xml")
+    public void shouldPregeneratePreviews() {
+
+        DocumentModel doc = Utilities.createTestDoc(session, true, "text/plain");
+
+        // Changing the thumbnail (as the thumbnail module does) schedules the work
+        File f = FileUtils.getResourceFileFromContext("home_bg.jpg");
+        doc = Utilities.setThumbnail(session, doc, new FileBlob(f, "image/jpeg"));
+        String digest = AssetPreview.getCacheDigest(doc);
+        assertNotNull(digest);
+
+        assertNotNull(PreviewCache.getInstance().get(digest, Constants.VARIANT_THUMBNAIL));
+        assertNotNull(PreviewCache.getInstance().get(digest, Constants.VARIANT_WEB));
+
+        PreviewCache.getInstance().clear();
+    }
+
+    @Test
+    public void shouldPregeneratePicturePreviewsOnceViewsAreCalculated() throws Exception {
+
+        DocumentModel folder = session.createDocumentModel("/", "assets", "Folder");
+        folder = session.createDocument(folder);
+        File f = FileUtils.getResourceFileFromContext("home_bg.jpg");
+        DocumentModel doc = fontoxmlservice.createAsset(session, new FileBlob(f, "image/jpeg"), null, folder);
+        assertTrue(doc.hasFacet("Picture"));
+
+        // Views are calculated asynchronously, then pictureViewsGenerationDone schedules the work
+        Utilities.waitForAsyncWorkAndStartTransaction(session);
+        Utilities.waitForAsyncWorkAndStartTransaction(session);
+
+        doc = session.getDocument(doc.getRef());
+        String digest = AssetPreview.getCacheDigest(doc);
+        assertNotNull(digest);
+        Blob cached = PreviewCache.getInstance().get(digest, Constants.VARIANT_THUMBNAIL);
+        assertNotNull(cached);
+        assertNotNull(PreviewCache.getInstance().get(digest, Constants.VARIANT_WEB));
+
+        // Same image => the work keeps what is cached for its digest and only calculates the missing variants
+        byte[] marker = "marker".getBytes();
+        PreviewCache.getInstance().clear();
+        PreviewCache.getInstance().put(digest, Constants.VARIANT_THUMBNAIL, Blobs.createBlob(marker, "image/png"));
+        PreviewGenerationWork.schedule(session.getRepositoryName(), doc.getId());
+        Utilities.waitForAsyncWorkAndStartTransaction(session);
+
+        cached = PreviewCache.getInstance().get(digest, Constants.VARIANT_THUMBNAIL);
+        assertNotNull(cached);
+        assertTrue(Arrays.equals(marker, cached.getByteArray()));
+        assertNotNull(PreviewCache.getInstance().get(digest, Constants.VARIANT_WEB));
+
+        PreviewCache.getInstance().clear();
+    }
+
+    @Test
+    @Deploy("nuxeo.fontoxml.nuxeo-fontoxml-core:preview-cache-disk-size.xml")
+    public void shouldBoundPreviewsOnDisk() {
+
+        PreviewCache.reset();
+        PreviewCache cache = PreviewCache.getInstance();
+        cache.clear();
+
+        // 3 x 400KB > 1MB => the least recently used is removed
+        byte[] bytes = new byte[400 * 1024];
+        for (int i = 1; i <= 3; i++) {
+            cache.put("digest" + i, Constants.VARIANT_WEB, Blobs.createBlob(bytes, "image/png"));
+        }
+
+        // Drop the in-memory tier, check what is on disk
+        PreviewCache.reset();
+        cache = PreviewCache.getInstance();
+        int count = 0;
+        for (int i = 1; i <= 3; i++) {
+            if (cache.get("digest" + i, Constants.VARIANT_WEB) != null) {
+                count += 1;
+            }
+        }
+        assertEquals(2, count);
+
+        cache.clear();
+    }
+
+    /*
+     * Starts CONCURRENT_PREVIEWS getPreview for the same preview while the thumbnail is blocked, then releases it
+     */
+    protected static final int CONCURRENT_PREVIEWS = 5;
+
+    protected List<Future<Blob>> getPreviewsConcurrently(ExecutorService executor, DocumentModel asset)
+            throws InterruptedException {
+
+        TestMockersAndFakers.thumbnailCalls.set(0);
+        TestMockersAndFakers.thumbnailRelease = new CountDownLatch(1);
+        List<Future<Blob>> results = new ArrayList<>();
+        for (int i = 0; i < CONCURRENT_PREVIEWS; i++) {
+            results.add(executor.submit(() -> AssetPreview.getPreview(session, asset, Constants.VARIANT_THUMBNAIL)));
+        }
+        // Let them all ask for it while the first one is calculating. One arriving later finds it in the cache,
+        // or, after a failure, calculates it again and fails too
+        Thread.sleep(500);
+        TestMockersAndFakers.thumbnailRelease.countDown();
+
+        return results;
+    }
+
+    @Test
+    @Deploy("nuxeo.fontoxml.nuxeo-fontoxml-core:thumbnail-factory-counting.xml")
+    public void shouldCalculateConcurrentPreviewsOnce() throws Exception {
+
+        DocumentModel doc = Utilities.createTestDoc(session, true, "text/plain");
+        doc = Utilities.setThumbnail(session, doc, new TestMockersAndFakers().computeThumbnail(doc, session));
+        assertNotNull(AssetPreview.getCacheDigest(doc));
+        PreviewCache.getInstance().clear();
+
+        ExecutorService executor = Executors.newFixedThreadPool(CONCURRENT_PREVIEWS);
+        try {
+            List<Future<Blob>> results = getPreviewsConcurrently(executor, doc);
+            byte[] expected = results.get(0).get(30, TimeUnit.SECONDS).getByteArray();
+            for (Future<Blob> result : results) {
+                assertArrayEquals(expected, result.get(30, TimeUnit.SECONDS).getByteArray());
+            }
+            assertEquals(1, TestMockersAndFakers.thumbnailCalls.get());
+        } finally {
+            TestMockersAndFakers.thumbnailRelease = null;
+            executor.shutdownNow();
+            PreviewCache.getInstance().clear();
+        }
+    }
+
+    @Test
+    @Deploy("nuxeo.fontoxml.nuxeo-fontoxml-core:thumbnail-factory-counting.xml")
+    public void shouldSendThePreviewFailureToAllTheRequests() throws Exception {
+
+        DocumentModel doc = Utilities.createTestDoc(session, true, "text/plain");
+        doc = Utilities.setThumbnail(session, doc, new TestMockersAndFakers().computeThumbnail(doc, session));
+        PreviewCache.getInstance().clear();
+
+        ExecutorService executor = Executors.newFixedThreadPool(CONCURRENT_PREVIEWS);
+        try {
+            TestMockersAndFakers.thumbnailFailure = new NuxeoException("No thumbnail");
+            for (Future<Blob> result : getPreviewsConcurrently(executor, doc)) {
+                try {
+                    result.get(30, TimeUnit.SECONDS);
+                    fail("The calculation failed");
+                } catch (ExecutionException e) {
+                    assertEquals("No thumbnail", e.getCause().getMessage());
+                }
+            }
+
+            // Not in flight anymore: the next request calculates it
+            TestMockersAndFakers.thumbnailFailure = null;
+            TestMockersAndFakers.thumbnailRelease = null;
+            assertNotNull(AssetPreview.getPreview(session, doc, Constants.VARIANT_THUMBNAIL));
+        } finally {
+            TestMockersAndFakers.thumbnailFailure = null;
+            TestMockersAndFakers.thumbnailRelease = null;
+            executor.shutdownNow();
+            PreviewCache.getInstance().clear();
+        }
+    }
+
+    @Test
+    public void shouldCreateDocumentNextToTheMainDocument() throws Exception {
+
+        DocumentModel folder = session.createDocument(session.createDocumentModel("/", "folder", "Folder"));
+        DocumentModel subFolder = session.createDocument(
+                session.createDocumentModel(folder.getPathAsString(), "subFolder", "Folder"));
+        DocumentModel mainDoc = session.createDocument(
+                session.createDocumentModel(subFolder.getPathAsString(), "main", "File"));
+        session.save();
+
+        // Same parent as the main document (not its grandparent)
+        Blob content = new StringBlob("<doc/>", Constants.MIME_TYPE_XML);
+        content.setFilename("sibling.xml");
+        DocumentModel doc = fontoxmlservice.createDocument(session, content, mainDoc, null);
+        assertEquals(subFolder.getRef(), doc.getParentRef());
+
+        // Inside the main document when it is a folder
+        content = new StringBlob("<doc/>", Constants.MIME_TYPE_XML);
+        content.setFilename("child.xml");
+        doc = fontoxmlservice.createDocument(session, content, folder, null);
+        assertEquals(folder.getRef(), doc.getParentRef());
+    }
 }
@@ -18,31 +18,53 @@
  */
 package nuxeo.fontoxml.test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
 import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 import javax.inject.Inject;
 import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.Part;
 
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.nuxeo.ecm.automation.test.AutomationFeature;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.Blobs;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
+import org.nuxeo.ecm.core.blob.ManagedBlob;
 import org.nuxeo.ecm.core.io.download.DownloadHelper;
 import org.nuxeo.ecm.core.test.DefaultRepositoryInit;
 import org.nuxeo.ecm.core.test.annotations.Granularity;
@@ -57,7 +79,13 @@ import org.nuxeo.runtime.test.runner.FeaturesRunner;
 import org.nuxeo.runtime.test.runner.TransactionalFeature;
 
 import com.google.common.collect.ImmutableMap;
+import com.nuxeo.fontoxml.FontoXMLConfigDescriptor;
+import com.nuxeo.fontoxml.autosave.AutosaveBuffer;
+import com.nuxeo.fontoxml.cache.PreviewCache;
+import com.nuxeo.fontoxml.servlet.AssetPreview;
 import com.nuxeo.fontoxml.servlet.Constants;
+import com.nuxeo.fontoxml.servlet.DocumentPatch;
+import com.nuxeo.fontoxml.servlet.ServletUtils;
 
 import nuxeo.fontoxml.test.utils.MockedServlet;
 import nuxeo.fontoxml.test.utils.TestMockersAndFakers;
@@ -76,6 +104,9 @@ public class TestServlet extends MockedServlet {
 
     public static final String PSEUDO_XML_CONTENT = "This should be XML";
 
+    // Tomcat's sendfile, see ServletUtils
+    protected static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+
     @Inject
     protected CoreSession session;
 
@@ -131,6 +162,126 @@ public class TestServlet extends MockedServlet {
 
     }
 
+    @Test
+    public void shouldStreamDocumentWithCharactersToEscape() throws Exception {
+
+        String xml = "<?xml version=\"1.0\"?>\n<topic id=\"t1\">\t<title>\u00e9t\u00e9 \\ \"quoted\" \u2028</title></topic>";
+        DocumentModel doc = session.createDocumentModel("/", "escape", "File");
+        doc.setPropertyValue("dc:title", "escape");
+        doc.setPropertyValue("file:content", (Serializable) new StringBlob(xml, Constants.MIME_TYPE_XML));
+        doc = session.createDocument(doc);
+        session.save();
+        transactionalFeature.nextTransaction();
+
+        Map<String, String> params = ImmutableMap.of(Constants.PARAM_DOC_ID, doc.getId());
+        run("GET", Constants.PATH_DOCUMENT, params, null, true);
+
+        verify(mockResponse).setStatus(HttpServletResponse.SC_OK);
+
+        JSONObject json = new JSONObject(responseOutputStream.toString("UTF-8"));
+        assertEquals(xml, json.getString(Constants.PARAM_CONTENT));
+        assertNotNull(json.getJSONObject(Constants.PARAM_METADATA).getJSONArray(Constants.PARAM_HIERARCHY));
+
+    }
+
+    @Test
+    public void shouldReturnNotModifiedWhenETagMatches() throws Exception {
+
+        DocumentModel doc = Utilities.createTestDoc(session, true, Constants.MIME_TYPE_XML);
+
+        Map<String, String> params = ImmutableMap.of(Constants.PARAM_DOC_ID, doc.getId());
+        run("GET", Constants.PATH_DOCUMENT, params, null, true);
+
+        verify(mockResponse).setStatus(HttpServletResponse.SC_OK);
+        ArgumentCaptor<String> etagCaptor = ArgumentCaptor.forClass(String.class);
+        verify(mockResponse).setHeader(eq(Constants.HEADER_ETAG), etagCaptor.capture());
+        String etag = etagCaptor.getValue();
+        assertNotNull(etag);
+
+        // Same document, same lock => 304, nothing sent
+        Map<String, String> headers = ImmutableMap.of(Constants.HEADER_IF_NONE_MATCH, etag);
+        run("GET", Constants.PATH_DOCUMENT, params, headers, null, true);
+
+        verify(mockResponse).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        assertEquals(0, responseOutputStream.size());
+
+        // Lock it => lock info changes => full response
+        session.setLock(doc.getRef());
+        transactionalFeature.nextTransaction();
+        run("GET", Constants.PATH_DOCUMENT, params, headers, null, true);
+
+        verify(mockResponse).setStatus(HttpServletResponse.SC_OK);
+
+    }
+
+    @Test
+    public void shouldNotReturnNotModifiedWhenParentIsRenamed() throws Exception {
+
+        DocumentModel folder = session.createDocumentModel("/", "folder", "Folder");
+        folder.setPropertyValue("dc:title", "Folder");
+        folder = session.createDocument(folder);
+        DocumentModel doc = session.createDocumentModel(folder.getPathAsString(), "doc", "File");
+        doc.setPropertyValue("dc:title", "Doc");
+        doc.setPropertyValue("file:content",
+                (Serializable) new StringBlob(Utilities.PSEUDO_XML_CONTENT, Constants.MIME_TYPE_XML));
+        doc = session.createDocument(doc);
+        transactionalFeature.nextTransaction();
+
+        Map<String, String> params = ImmutableMap.of(Constants.PARAM_DOC_ID, doc.getId());
+        run("GET", Constants.PATH_DOCUMENT, params, null, true);
+        verify(mockResponse).setStatus(HttpServletResponse.SC_OK);
+        ArgumentCaptor<String> etagCaptor = ArgumentCaptor.forClass(String.class);
+        verify(mockResponse).setHeader(eq(Constants.HEADER_ETAG), etagCaptor.capture());
+        Map<String, String> headers = ImmutableMap.of(Constants.HEADER_IF_NONE_MATCH, etagCaptor.getValue());
+
+        // Same content, same lock, but the hierarchy sent with it changed => full response
+        folder.setPropertyValue("dc:title", "Renamed folder");
+        session.saveDocument(folder);
+        transactionalFeature.nextTransaction();
+        run("GET", Constants.PATH_DOCUMENT, params, headers, null, true);
+
+        verify(mockResponse).setStatus(HttpServletResponse.SC_OK);
+        JSONObject json = new JSONObject(responseOutputStream.toString("UTF-8"));
+        JSONArray hierarchy = json.getJSONObject(Constants.PARAM_METADATA).getJSONArray(Constants.PARAM_HIERARCHY);
+        assertEquals("Renamed folder", hierarchy.getJSONObject(hierarchy.length() - 2).getString("label"));
+    }
+
+    @Test
+    public void shouldIncludeAdditionalDocuments() throws Exception {
+
+        DocumentModel topic = session.createDocumentModel("/", "topic", "File");
+        topic.setPropertyValue("dc:title", "topic.dita");
+        topic.setPropertyValue("file:content", (Serializable) new StringBlob("<topic/>", Constants.MIME_TYPE_XML));
+        topic = session.createDocument(topic);
+
+        String mapXml = "<map><topicref href=\"" + topic.getId() + "#topic_1\"/>"
+                + "<topicref href=\"http://www.nuxeo.com\"/></map>";
+        DocumentModel map = session.createDocumentModel("/", "map", "File");
+        map.setPropertyValue("dc:title", "map.ditamap");
+        map.setPropertyValue("file:content", (Serializable) new StringBlob(mapXml, Constants.MIME_TYPE_XML));
+        map = session.createDocument(map);
+        session.save();
+        transactionalFeature.nextTransaction();
+
+        Map<String, String> params = ImmutableMap.of(Constants.PARAM_DOC_ID, map.getId(),
+                Constants.PARAM_INCLUDE_ADDITIONAL_DOCUMENTS, "true");
+        run("GET", Constants.PATH_DOCUMENT, params, null, true);
+
+        verify(mockResponse).setStatus(HttpServletResponse.SC_OK);
+
+        JSONObject json = new JSONObject(responseOutputStream.toString("UTF-8"));
+        assertEquals(mapXml, json.getString(Constants.PARAM_CONTENT));
+        JSONArray additionalDocs = json.getJSONArray(Constants.PARAM_ADDITIONAL_DOCUMENTS);
+        assertEquals(1, additionalDocs.length());
+        JSONObject additionalDoc = additionalDocs.getJSONObject(0);
+        assertEquals(HttpServletResponse.SC_OK, additionalDoc.getInt(Constants.PARAM_STATUS));
+        JSONObject body = additionalDoc.getJSONObject(Constants.PARAM_BODY);
+        assertEquals(topic.getId(), body.getString(Constants.PARAM_DOC_ID));
+        assertEquals("<topic/>", body.getString(Constants.PARAM_CONTENT));
+        assertNotNull(body.getJSONObject(Constants.PARAM_LOCK));
+
+    }
+
     @Test
     public void testGetDocumentFailsWithDocNotFound() throws Exception {
 
@@ -195,6 +346,106 @@ public class TestServlet extends MockedServlet {
 
     }
 
+    @Test
+    @Deploy("org.nuxeo.ecm.platform.thumbnail")
+    @Deploy("nuxeo.fontoxml.nuxeo-fontoxml-core:thumbnail-factory.xml")
+    public void shouldCacheAssetPreview() throws Exception {
+
+        DocumentModel doc = Utilities.createTestDoc(session, true, "text/plain");
+        doc = Utilities.setThumbnail(session, doc, new TestMockersAndFakers().computeThumbnail(doc, session));
+        String digest = AssetPreview.getCacheDigest(doc);
+        assertNotNull(digest);
+        // Setting the thumbnail pregenerated the previews, start from an empty cache
+        PreviewCache.getInstance().clear();
+
+        JSONObject context = new JSONObject();
+        context.put(Constants.PARAM_DOC_ID, doc.getId());
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(Constants.PARAM_CONTEXT, context.toString());
+        params.put(Constants.PARAM_ID, doc.getId());
+        params.put(Constants.PARAM_VARIANT, Constants.VARIANT_THUMBNAIL);
+
+        assertNull(PreviewCache.getInstance().get(digest, Constants.VARIANT_WEB));
+        run("GET", Constants.PATH_ASSET_PREVIEW, params, null, true);
+        verify(mockResponse).setStatus(HttpServletResponse.SC_OK);
+
+        Blob cached = PreviewCache.getInstance().get(digest, Constants.VARIANT_THUMBNAIL);
+        assertNotNull(cached);
+        assertEquals(TestMockersAndFakers.THUMBNAIL_MIMETYPE, cached.getMimeType());
+        assertArrayEquals(responseOutputStream.toByteArray(), cached.getByteArray());
+
+        // Dropping the in-memory tier (like a restart) => still on disk
+        PreviewCache.reset();
+        cached = PreviewCache.getInstance().get(digest, Constants.VARIANT_THUMBNAIL);
+        assertNotNull(cached);
+        assertArrayEquals(responseOutputStream.toByteArray(), cached.getByteArray());
+
+        PreviewCache.getInstance().clear();
+    }
+
+    @Test
+    @Deploy("org.nuxeo.ecm.platform.thumbnail")
+    @Deploy("nuxeo.fontoxml.nuxeo-fontoxml-core:thumbnail-factory.xml")
+    public void shouldNotCachePlaceholderPreview() throws Exception {
+
+        // No thumbnail yet => what the ThumbnailService returns is a placeholder, the real one comes later
+        DocumentModel doc = Utilities.createTestDoc(session, true, "text/plain");
+        doc = Utilities.setThumbnail(session, doc, null);
+        assertNull(AssetPreview.getCacheDigest(doc));
+
+        JSONObject context = new JSONObject();
+        context.put(Constants.PARAM_DOC_ID, doc.getId());
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(Constants.PARAM_CONTEXT, context.toString());
+        params.put(Constants.PARAM_ID, doc.getId());
+        params.put(Constants.PARAM_VARIANT, Constants.VARIANT_THUMBNAIL);
+        params.put(Constants.PARAM_DIGEST, AssetPreview.getDigest(doc));
+        // dc:modified did not change since the first call, this must not end in a 304
+        Map<String, String> headers = ImmutableMap.of(Constants.HEADER_IF_MODIFIED_SINCE,
+                DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusDays(1)));
+
+        run("GET", Constants.PATH_ASSET_PREVIEW, params, headers, null, true);
+        verify(mockResponse).setStatus(HttpServletResponse.SC_OK);
+        verify(mockResponse, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        assertTrue(responseOutputStream.size() > 0);
+        // No validator at all, not stored by the browser, and not cached
+        verify(mockResponse, never()).setHeader(eq(Constants.HEADER_ETAG), anyString());
+        verify(mockResponse, never()).setDateHeader(eq(Constants.HEADER_LAST_MODIFIED), anyLong());
+        verify(mockResponse).setHeader(Constants.HEADER_CACHE_CONTROL, Constants.NO_STORE_CACHE_CONTROL);
+        assertNull(PreviewCache.getInstance().get(AssetPreview.getDigest(doc), Constants.VARIANT_THUMBNAIL));
+    }
+
+    @Test
+    public void shouldNotSendValidatorForUnknownPreviewVariant() throws Exception {
+
+        DocumentModel doc = Utilities.createTestDoc(session, true, "text/plain");
+        doc = Utilities.setThumbnail(session, doc, new TestMockersAndFakers().computeThumbnail(doc, session));
+        String digest = AssetPreview.getCacheDigest(doc);
+        assertNotNull(digest);
+        PreviewCache.getInstance().clear();
+
+        String variant = "web\", W/\"other";
+        JSONObject context = new JSONObject();
+        context.put(Constants.PARAM_DOC_ID, doc.getId());
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(Constants.PARAM_CONTEXT, context.toString());
+        params.put(Constants.PARAM_ID, doc.getId());
+        params.put(Constants.PARAM_VARIANT, variant);
+        params.put(Constants.PARAM_DIGEST, digest);
+        // dc:modified did not change since the first call, this must not end in a 304
+        Map<String, String> headers = ImmutableMap.of(Constants.HEADER_IF_MODIFIED_SINCE,
+                DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusDays(1)));
+
+        run("GET", Constants.PATH_ASSET_PREVIEW, params, headers, null, true);
+        verify(mockResponse).setStatus(HttpServletResponse.SC_OK);
+        verify(mockResponse, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        // The variant is neither in a header nor in the cache, and the response is not immutable
+        verify(mockResponse, never()).setHeader(eq(Constants.HEADER_ETAG), anyString());
+        verify(mockResponse, never()).setDateHeader(eq(Constants.HEADER_LAST_MODIFIED), anyLong());
+        verify(mockResponse).setHeader(Constants.HEADER_CACHE_CONTROL, Constants.NO_STORE_CACHE_CONTROL);
+        assertNull(PreviewCache.getInstance().get(digest, variant));
+    }
+
     /*
      * We don't test misc. configurations with automation chain, defaultRendition or xpath => this is tested with the
      * service (TestFontoXMLService)
@@ -242,6 +493,118 @@ public class TestServlet extends MockedServlet {
 
     }
 
+    @Test
+    public void shouldGetAssetByteRange() throws Exception {
+
+        DocumentModel doc = Utilities.createTestDoc(session, true, "text/plain");
+        byte[] content = Utilities.PSEUDO_XML_CONTENT.getBytes(StandardCharsets.UTF_8);
+
+        JSONObject context = new JSONObject();
+        context.put(Constants.PARAM_DOC_ID, doc.getId());
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(Constants.PARAM_CONTEXT, context.toString());
+        params.put(Constants.PARAM_ID, doc.getId());
+
+        Map<String, String> headers = ImmutableMap.of(Constants.HEADER_RANGE, "bytes=2-11");
+        run("GET", Constants.PATH_ASSET, params, headers, null, true);
+
+        verify(mockResponse).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        verify(mockResponse).setHeader(Constants.HEADER_CONTENT_RANGE, "bytes 2-11/" + content.length);
+        verify(mockResponse).setContentLengthLong(10);
+        assertArrayEquals(Arrays.copyOfRange(content, 2, 12), responseOutputStream.toByteArray());
+
+        // Out of the blob
+        headers = ImmutableMap.of(Constants.HEADER_RANGE, "bytes=" + content.length + "-");
+        run("GET", Constants.PATH_ASSET, params, headers, null, true);
+        verify(mockResponse).sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+    }
+
+    @Test
+    public void shouldUseSendfileForDurableFilesOnly() throws Exception {
+
+        // Temporary blob: may be deleted before the container sends it => streamed
+        Blob temporary = Blobs.createBlobWithExtension(".txt");
+        FileUtils.writeStringToFile(temporary.getFile(), PSEUDO_XML_CONTENT, StandardCharsets.UTF_8);
+        HttpServletRequest req = mockSendfileRequest();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ServletUtils.sendBlob(req, mockResponseWriting(out), temporary, null, -1);
+        verify(req, never()).setAttribute(eq(SENDFILE_FILENAME_ATTR), any());
+        assertEquals(PSEUDO_XML_CONTENT, out.toString("UTF-8"));
+
+        // Managed by a remote provider (S3, ...): the file is in its cache and can be evicted => streamed
+        ManagedBlob remote = mock(ManagedBlob.class);
+        when(remote.getProviderId()).thenReturn("remote");
+        when(remote.getLength()).thenReturn(temporary.getLength());
+        when(remote.getFile()).thenReturn(temporary.getFile());
+        when(remote.getStream()).thenAnswer(invocation -> temporary.getStream());
+        req = mockSendfileRequest();
+        out = new ByteArrayOutputStream();
+        ServletUtils.sendBlob(req, mockResponseWriting(out), remote, null, -1);
+        verify(req, never()).setAttribute(eq(SENDFILE_FILENAME_ATTR), any());
+        assertEquals(PSEUDO_XML_CONTENT, out.toString("UTF-8"));
+
+        // Stored by the local blob provider => sendfile
+        DocumentModel doc = Utilities.createTestDoc(session, true, "text/plain");
+        Blob stored = (Blob) session.getDocument(doc.getRef()).getPropertyValue("file:content");
+        assertNotNull(stored.getFile());
+        req = mockSendfileRequest();
+        out = new ByteArrayOutputStream();
+        ServletUtils.sendBlob(req, mockResponseWriting(out), stored, null, -1);
+        verify(req).setAttribute(SENDFILE_FILENAME_ATTR, stored.getFile().getAbsolutePath());
+        assertEquals(0, out.size());
+    }
+
+    protected HttpServletRequest mockSendfileRequest() {
+
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getAttribute("org.apache.tomcat.sendfile.support")).thenReturn(Boolean.TRUE);
+        return req;
+    }
+
+    protected HttpServletResponse mockResponseWriting(ByteArrayOutputStream out) throws IOException {
+
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        when(resp.getOutputStream()).thenReturn(new DummyServletOutputStream() {
+            @Override
+            public void write(int b) {
+                out.write(b);
+            }
+        });
+        return resp;
+    }
+
+    @Test
+    public void shouldSendAssetValidators() throws Exception {
+
+        DocumentModel doc = Utilities.createTestDoc(session, true, "text/plain");
+        Blob blob = (Blob) session.getDocument(doc.getRef()).getPropertyValue("file:content");
+        String etag = "\"" + blob.getDigest() + "\"";
+
+        JSONObject context = new JSONObject();
+        context.put(Constants.PARAM_DOC_ID, doc.getId());
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(Constants.PARAM_CONTEXT, context.toString());
+        params.put(Constants.PARAM_ID, doc.getId());
+
+        run("GET", Constants.PATH_ASSET, params, null, true);
+        verify(mockResponse).setStatus(HttpServletResponse.SC_OK);
+        verify(mockResponse).setHeader(Constants.HEADER_ETAG, etag);
+        verify(mockResponse).setHeader(Constants.HEADER_CACHE_CONTROL,
+                FontoXMLConfigDescriptor.DEFAULT_ASSET_CACHE_CONTROL);
+
+        // Client has it => 304, nothing sent
+        Map<String, String> headers = ImmutableMap.of(Constants.HEADER_IF_NONE_MATCH, etag);
+        run("GET", Constants.PATH_ASSET, params, headers, null, true);
+        verify(mockResponse).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        assertEquals(0, responseOutputStream.size());
+
+        // Addressed by digest => immutable
+        params.put(Constants.PARAM_DIGEST, blob.getDigest());
+        run("GET", Constants.PATH_ASSET, params, null, true);
+        verify(mockResponse).setHeader(Constants.HEADER_CACHE_CONTROL,
+                FontoXMLConfigDescriptor.DEFAULT_IMMUTABLE_CACHE_CONTROL);
+    }
+
     @Test
     @Deploy("nuxeo.fontoxml.nuxeo-fontoxml-core:listener-docModifiedByFonto.xml")
     public void shouldPutDocumentAndCallListener() throws Exception {
@@ -273,6 +636,215 @@ public class TestServlet extends MockedServlet {
 
     }
     
+    @Test
+    @Deploy("nuxeo.fontoxml.nuxeo-fontoxml-core:listener-docModifiedByFonto-async.xml")
+    public void shouldCallAsyncListenerAfterCommit() throws Exception {
+
+        DocumentModel doc = Utilities.createTestDoc(session, true, Constants.MIME_TYPE_XML);
+        TestMockersAndFakers.postCommitAutosave = null;
+        TestMockersAndFakers.postCommitDigest = null;
+
+        putDocument(doc, "NEW XML CONTENT", true);
+        verify(mockResponse).setStatus(HttpServletResponse.SC_OK);
+        // Not called before the commit
+        assertNull(TestMockersAndFakers.postCommitAutosave);
+
+        Utilities.waitForAsyncWorkAndStartTransaction(session);
+
+        doc.refresh();
+        assertEquals(Boolean.TRUE, TestMockersAndFakers.postCommitAutosave);
+        assertEquals(((Blob) doc.getPropertyValue("file:content")).getDigest(), TestMockersAndFakers.postCommitDigest);
+
+    }
+
+    @Test
+    @Deploy("nuxeo.fontoxml.nuxeo-fontoxml-core:listener-docModifiedByFonto.xml")
+    public void shouldNotSaveUnchangedContent() throws Exception {
+
+        DocumentModel doc = Utilities.createTestDoc(session, true, Constants.MIME_TYPE_XML);
+        Blob blob = (Blob) doc.getPropertyValue("file:content");
+        Serializable modified = doc.getPropertyValue("dc:modified");
+
+        putDocument(doc, PSEUDO_XML_CONTENT, true);
+        verify(mockResponse).setStatus(HttpServletResponse.SC_OK);
+
+        // Same blob, not saved, no event
+        doc.refresh();
+        assertEquals(blob.getDigest(), ((Blob) doc.getPropertyValue("file:content")).getDigest());
+        assertEquals(modified, doc.getPropertyValue("dc:modified"));
+        assertNull(doc.getPropertyValue("dc:description"));
+
+        // A change is saved
+        putDocument(doc, PSEUDO_XML_CONTENT + " - modified", true);
+        doc.refresh();
+        assertEquals(PSEUDO_XML_CONTENT + " - modified", ((Blob) doc.getPropertyValue("file:content")).getString());
+        assertEquals("OK", doc.getPropertyValue("dc:description"));
+
+    }
+
+    @Test
+    @Deploy("nuxeo.fontoxml.nuxeo-fontoxml-core:listener-docModifiedByFonto.xml")
+    @Deploy("nuxeo.fontoxml.nuxeo-fontoxml-core:autosave-write-behind.xml")
+    public void shouldBufferAutosavesUntilLockIsReleased() throws Exception {
+
+        DocumentModel doc = Utilities.createTestDoc(session, true, Constants.MIME_TYPE_XML);
+        session.setLock(doc.getRef());
+        transactionalFeature.nextTransaction();
+
+        putDocument(doc, "AUTOSAVED 1", true);
+        verify(mockResponse).setStatus(HttpServletResponse.SC_OK);
+        putDocument(doc, "AUTOSAVED 2", true);
+        verify(mockResponse).setStatus(HttpServletResponse.SC_OK);
+
+        // Not saved, no event
+        doc.refresh();
+        assertEquals(PSEUDO_XML_CONTENT, ((Blob) doc.getPropertyValue("file:content")).getString());
+        assertNull(doc.getPropertyValue("dc:description"));
+
+        // But Fonto gets the latest content
+        Map<String, String> params = ImmutableMap.of(Constants.PARAM_DOC_ID, doc.getId());
+        run("GET", Constants.PATH_DOCUMENT, params, null, true);
+        verify(mockResponse).setStatus(HttpServletResponse.SC_OK);
+        JSONObject json = new JSONObject(responseOutputStream.toString("UTF-8"));
+        assertEquals("AUTOSAVED 2", json.getString(Constants.PARAM_CONTENT));
+
+        // Releasing the lock saves it
+        JSONObject lock = new JSONObject();
+        lock.put(Constants.PARAM_LOCK_ACQUIRED, false);
+        JSONObject body = new JSONObject();
+        body.put(Constants.PARAM_CONTEXT, new JSONObject());
+        body.put(Constants.PARAM_DOC_ID, doc.getId());
+        body.put(Constants.PARAM_LOCK, lock);
+        body.put(Constants.PARAM_DOCUMENT_CONTEXT, new JSONObject());
+        run("PUT", Constants.PATH_DOCUMENT_LOCK, null, body.toString(), true);
+        verify(mockResponse).setStatus(HttpServletResponse.SC_OK);
+
+        doc.refresh();
+        assertFalse(doc.isLocked());
+        assertEquals("AUTOSAVED 2", ((Blob) doc.getPropertyValue("file:content")).getString());
+        assertEquals("OK", doc.getPropertyValue("dc:description"));
+
+    }
+
+    @Test
+    @Deploy("nuxeo.fontoxml.nuxeo-fontoxml-core:autosave-write-behind.xml")
+    public void shouldKeepAutosaveThatCannotBeSaved() throws Exception {
+
+        DocumentModel doc = Utilities.createTestDoc(session, true, Constants.MIME_TYPE_XML);
+        session.setLock(doc.getRef());
+        transactionalFeature.nextTransaction();
+
+        putDocument(doc, "AUTOSAVED", true);
+        verify(mockResponse).setStatus(HttpServletResponse.SC_OK);
+
+        // Lock released without a flush on this node (released on another node for example) => writing would
+        // overwrite what is saved from now on
+        session.removeLock(doc.getRef());
+        transactionalFeature.nextTransaction();
+        AutosaveBuffer buffer = AutosaveBuffer.getInstance();
+        buffer.flushAll();
+
+        doc.refresh();
+        assertEquals(PSEUDO_XML_CONTENT, ((Blob) doc.getPropertyValue("file:content")).getString());
+        // Kept, and reported
+        assertNotNull(buffer.getFailure(doc.getRepositoryName(), doc.getId()));
+        assertEquals("AUTOSAVED", buffer.getPendingContent(doc.getRepositoryName(), doc.getId()).getString());
+
+        putDocument(doc, "AUTOSAVED 2", true);
+        verify(mockResponse).sendError(eq(HttpServletResponse.SC_CONFLICT), anyString());
+
+        Map<String, String> params = ImmutableMap.of(Constants.PARAM_DOC_ID, doc.getId());
+        run("GET", Constants.PATH_DOCUMENT, params, null, true);
+        JSONObject json = new JSONObject(responseOutputStream.toString("UTF-8"));
+        assertEquals("AUTOSAVED", json.getString(Constants.PARAM_CONTENT));
+
+        // An explicit save writes and clears it
+        putDocument(doc, "SAVED", false);
+        verify(mockResponse).setStatus(HttpServletResponse.SC_OK);
+        doc.refresh();
+        assertEquals("SAVED", ((Blob) doc.getPropertyValue("file:content")).getString());
+        assertNull(buffer.getFailure(doc.getRepositoryName(), doc.getId()));
+        assertNull(buffer.getPendingContent(doc.getRepositoryName(), doc.getId()));
+    }
+
+    @Test
+    @Deploy("nuxeo.fontoxml.nuxeo-fontoxml-core:autosave-write-behind.xml")
+    public void shouldSaveAtOnceWhenNotAutosave() throws Exception {
+
+        DocumentModel doc = Utilities.createTestDoc(session, true, Constants.MIME_TYPE_XML);
+
+        putDocument(doc, "AUTOSAVED", true);
+        putDocument(doc, "SAVED", false);
+        verify(mockResponse).setStatus(HttpServletResponse.SC_OK);
+
+        doc.refresh();
+        assertEquals("SAVED", ((Blob) doc.getPropertyValue("file:content")).getString());
+
+        // The autosaved content was dropped, the explicit save is newer
+        AutosaveBuffer buffer = AutosaveBuffer.getInstance();
+        assertNull(buffer.getPendingContent(doc.getRepositoryName(), doc.getId()));
+        buffer.flushAll();
+        doc.refresh();
+        assertEquals("SAVED", ((Blob) doc.getPropertyValue("file:content")).getString());
+
+    }
+
+    @Test
+    public void shouldPutDocumentPatch() throws Exception {
+
+        DocumentModel doc = Utilities.createTestDoc(session, true, Constants.MIME_TYPE_XML);
+        // "This should be XML" => "This is XML!"
+        String expected = "This is XML!";
+        JSONArray deltas = new JSONArray();
+        deltas.put(new JSONObject().put("start", 18).put("end", 18).put("text", "!"));
+        deltas.put(new JSONObject().put("start", 5).put("end", 14).put("text", "is"));
+
+        putDocumentPatch(doc, DocumentPatch.digest(PSEUDO_XML_CONTENT), deltas, DocumentPatch.digest(expected));
+        verify(mockResponse).setStatus(HttpServletResponse.SC_OK);
+
+        doc.refresh();
+        assertEquals(expected, ((Blob) doc.getPropertyValue("file:content")).getString());
+
+        // Same patch again: the base is not the current content anymore => the client must send the whole content
+        putDocumentPatch(doc, DocumentPatch.digest(PSEUDO_XML_CONTENT), deltas, DocumentPatch.digest(expected));
+        verify(mockResponse).sendError(eq(HttpServletResponse.SC_CONFLICT), anyString());
+
+        // Result not the expected one
+        putDocumentPatch(doc, DocumentPatch.digest(expected), deltas, DocumentPatch.digest("something else"));
+        verify(mockResponse).sendError(eq(HttpServletResponse.SC_CONFLICT), anyString());
+
+        doc.refresh();
+        assertEquals(expected, ((Blob) doc.getPropertyValue("file:content")).getString());
+
+    }
+
+    protected void putDocumentPatch(DocumentModel doc, String baseDigest, JSONArray deltas, String digest)
+            throws Exception {
+
+        JSONObject patch = new JSONObject();
+        patch.put(Constants.PARAM_BASE_DIGEST, baseDigest);
+        patch.put(Constants.PARAM_DELTAS, deltas);
+        patch.put(Constants.PARAM_DIGEST, digest);
+        JSONObject body = new JSONObject();
+        body.put(Constants.PARAM_CONTEXT, new JSONObject());
+        body.put(Constants.PARAM_DOC_ID, doc.getId());
+        body.put(Constants.PARAM_DOCUMENT_CONTEXT, new JSONObject());
+        body.put(Constants.PARAM_PATCH, patch);
+        run("PUT", Constants.PATH_DOCUMENT, null, body.toString(), true);
+    }
+
+    protected void putDocument(DocumentModel doc, String content, boolean autosave) throws Exception {
+
+        JSONObject body = new JSONObject();
+        body.put(Constants.PARAM_CONTEXT, new JSONObject());
+        body.put(Constants.PARAM_DOC_ID, doc.getId());
+        body.put(Constants.PARAM_DOCUMENT_CONTEXT, new JSONObject());
+        body.put(Constants.PARAM_METADATA, new JSONObject());
+        body.put(Constants.PARAM_AUTOSAVE, autosave);
+        body.put(Constants.PARAM_CONTENT, content);
+        run("PUT", Constants.PATH_DOCUMENT, null, body.toString(), true);
+    }
+
     @Ignore
     @Test
     public void shouldPostAsset() throws Exception {
@@ -1,18 +1,37 @@
 package nuxeo.fontoxml.test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 
+import javax.inject.Inject;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.nuxeo.common.utils.FileUtils;
 import org.nuxeo.ecm.automation.test.AutomationFeature;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentSecurityException;
+import org.nuxeo.ecm.core.api.security.ACE;
+import org.nuxeo.ecm.core.api.security.ACL;
+import org.nuxeo.ecm.core.api.security.ACP;
+import org.nuxeo.ecm.core.api.security.SecurityConstants;
+import org.nuxeo.ecm.core.api.security.impl.ACPImpl;
 import org.nuxeo.ecm.core.test.DefaultRepositoryInit;
 import org.nuxeo.ecm.core.test.annotations.Granularity;
 import org.nuxeo.ecm.core.test.annotations.RepositoryConfig;
@@ -20,6 +39,12 @@ import org.nuxeo.runtime.test.runner.Deploy;
 import org.nuxeo.runtime.test.runner.Features;
 import org.nuxeo.runtime.test.runner.FeaturesRunner;
 
+import com.nuxeo.fontoxml.cache.ContainerCache;
+import com.nuxeo.fontoxml.servlet.Constants;
+import com.nuxeo.fontoxml.servlet.EditSessionToken;
+import com.nuxeo.fontoxml.servlet.JSONStreamReader;
+import com.nuxeo.fontoxml.servlet.ServletUtils;
+import com.nuxeo.fontoxml.servlet.SpoolingWriter;
 import com.nuxeo.fontoxml.servlet.Utilities;
 
 @RunWith(FeaturesRunner.class)
@@ -27,6 +52,9 @@ import com.nuxeo.fontoxml.servlet.Utilities;
 @RepositoryConfig(init = DefaultRepositoryInit.class, cleanup = Granularity.METHOD)
 @Deploy("nuxeo.fontoxml.nuxeo-fontoxml-core")
 public class TestServletUtilities {
+
+    @Inject
+    protected CoreSession session;
     
     @Test
     public void shouldGetTheCorrectMimeTypes() throws Exception {
@@ -68,4 +96,144 @@ public class TestServletUtilities {
         assertFalse(canGetString);
         
     }
+
+    @Test
+    public void shouldUpdateHierarchyWhenAFolderIsRenamed() throws Exception {
+
+        DocumentModel folder = session.createDocumentModel("/", "folder", "Folder");
+        folder.setPropertyValue("dc:title", "Folder");
+        folder = session.createDocument(folder);
+        DocumentModel doc = session.createDocumentModel(folder.getPathAsString(), "doc", "File");
+        doc.setPropertyValue("dc:title", "Doc");
+        doc = session.createDocument(doc);
+        session.save();
+
+        JSONArray hierarchy = Utilities.buildHierarchy(doc);
+        int last = hierarchy.length() - 1;
+        assertEquals("Doc", hierarchy.getJSONObject(last).getString("label"));
+        assertEquals("Folder", hierarchy.getJSONObject(last - 1).getString("label"));
+        assertEquals(Constants.FONTO_TYPE_FOLDER, hierarchy.getJSONObject(last - 1).getString("type"));
+
+        // The ancestors are cached, the listener must invalidate them
+        folder.setPropertyValue("dc:title", "Renamed");
+        session.saveDocument(folder);
+        session.save();
+
+        hierarchy = Utilities.buildHierarchy(doc);
+        assertEquals("Renamed", hierarchy.getJSONObject(hierarchy.length() - 2).getString("label"));
+    }
+
+    @Test
+    public void shouldParseRanges() {
+
+        assertArrayEquals(new long[] { 0, 99 }, ServletUtils.parseRange("bytes=0-99", 1000));
+        assertArrayEquals(new long[] { 500, 999 }, ServletUtils.parseRange("bytes=500-", 1000));
+        assertArrayEquals(new long[] { 900, 999 }, ServletUtils.parseRange("bytes=-100", 1000));
+        assertArrayEquals(new long[] { 900, 999 }, ServletUtils.parseRange("bytes=900-5000", 1000));
+        // Not satisfiable
+        assertEquals(0, ServletUtils.parseRange("bytes=1000-", 1000).length);
+        // Invalid or not handled => full content
+        assertNull(ServletUtils.parseRange("bytes=99-0", 1000));
+        assertNull(ServletUtils.parseRange("bytes=0-10,20-30", 1000));
+        assertNull(ServletUtils.parseRange("items=0-10", 1000));
+    }
+
+    @Test
+    public void shouldStreamTheContentWhenReadingJSON() throws Exception {
+
+        String xml = "<?xml version=\"1.0\"?>\n<topic id=\"t1\">\t<title>\u00e9t\u00e9 \\ \"q\" \u2028 /</title></topic>";
+        JSONObject body = new JSONObject();
+        body.put(Constants.PARAM_DOC_ID, "1234");
+        body.put(Constants.PARAM_AUTOSAVE, true);
+        body.put(Constants.PARAM_CONTEXT, new JSONObject().put("editSessionToken", "{\"a\": [1, \"}\"]}"));
+        body.put(Constants.PARAM_CONTENT, xml);
+        body.put(Constants.PARAM_METADATA, JSONObject.NULL);
+
+        // Small threshold => spooled to a file
+        SpoolingWriter writer = new SpoolingWriter(16);
+        JSONStreamReader reader = new JSONStreamReader(new StringReader(body.toString()));
+        JSONObject fields = reader.readObject(Constants.PARAM_CONTENT, writer);
+
+        assertTrue(reader.hasStreamedValue());
+        assertFalse(fields.has(Constants.PARAM_CONTENT));
+        assertEquals("1234", fields.getString(Constants.PARAM_DOC_ID));
+        assertTrue(fields.getBoolean(Constants.PARAM_AUTOSAVE));
+        assertEquals("{\"a\": [1, \"}\"]}",
+                fields.getJSONObject(Constants.PARAM_CONTEXT).getString("editSessionToken"));
+        assertTrue(fields.isNull(Constants.PARAM_METADATA));
+
+        Blob blob = writer.getBlob(Constants.MIME_TYPE_XML);
+        assertTrue(writer.isSpooled());
+        assertEquals(xml, blob.getString());
+        assertEquals(xml.getBytes(StandardCharsets.UTF_8).length, blob.getLength());
+
+        // Not spooled
+        writer = new SpoolingWriter(0);
+        new JSONStreamReader(new StringReader(body.toString())).readObject(Constants.PARAM_CONTENT, writer);
+        assertEquals(xml, writer.getBlob(Constants.MIME_TYPE_XML).getString());
+        assertFalse(writer.isSpooled());
+
+        // Not a JSON object
+        try {
+            new JSONStreamReader(new StringReader("{\"docId\": \"12")).readObject(Constants.PARAM_CONTENT, writer);
+            fail("Unterminated string");
+        } catch (JSONException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void shouldUpdateContainerWhenMainDocumentIsMoved() throws Exception {
+
+        DocumentModel folder1 = session.createDocument(session.createDocumentModel("/", "folder1", "Folder"));
+        DocumentModel folder2 = session.createDocument(session.createDocumentModel("/", "folder2", "Folder"));
+        DocumentModel doc = session.createDocumentModel(folder1.getPathAsString(), "doc", "File");
+        doc = session.createDocument(doc);
+        session.save();
+
+        EditSessionToken token = new EditSessionToken(
+                "{\"mainDocId\": \"" + doc.getId() + "\", \"unicityToken\": 1}");
+        assertEquals(folder1.getId(), token.getContainer(session).getId());
+
+        // A folder is its own container
+        EditSessionToken folderToken = new EditSessionToken(
+                "{\"mainDocId\": \"" + folder2.getId() + "\", \"unicityToken\": 1}");
+        assertEquals(folder2.getId(), folderToken.getContainer(session).getId());
+
+        session.move(doc.getRef(), folder2.getRef(), null);
+        session.save();
+        assertEquals(folder2.getId(), token.getContainer(session).getId());
+
+        assertEquals(session.getRootDocument().getId(), ContainerCache.getInstance().getRootId(session));
+    }
+
+    @Test
+    public void shouldNotReturnContainerToUsersWhoCannotReadTheMainDocument() throws Exception {
+
+        DocumentModel folder = session.createDocument(session.createDocumentModel("/", "folder", "Folder"));
+        DocumentModel doc = session.createDocument(session.createDocumentModel(folder.getPathAsString(), "doc", "File"));
+        // jdoe can read the folder, not the document
+        ACP acp = folder.getACP();
+        acp.getOrCreateACL().add(new ACE("jdoe", SecurityConstants.READ, true));
+        session.setACP(folder.getRef(), acp, true);
+        ACP docAcp = new ACPImpl();
+        ACL docAcl = docAcp.getOrCreateACL();
+        docAcl.add(new ACE("Administrator", SecurityConstants.EVERYTHING, true));
+        docAcl.add(ACE.BLOCK);
+        session.setACP(doc.getRef(), docAcp, true);
+        session.save();
+
+        EditSessionToken token = new EditSessionToken(
+                "{\"mainDocId\": \"" + doc.getId() + "\", \"unicityToken\": 1}");
+        assertEquals(folder.getId(), token.getContainer(session).getId());
+
+        CoreSession jdoeSession = CoreInstance.getCoreSession(session.getRepositoryName(), "jdoe");
+        try {
+            token.getContainer(jdoeSession);
+            fail("jdoe cannot read the main document");
+        } catch (DocumentSecurityException e) {
+            // Expected
+        }
+    }
+
 }
@@ -25,6 +25,9 @@ import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
 import java.io.StringReader;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.Map;
 
 import javax.servlet.ServletOutputStream;
@@ -58,6 +61,12 @@ public class MockedServlet {
     protected void run(String httpVerb, String pathInfo, Map<String, String> params, String body, boolean withOutStream)
             throws Exception {
 
+        run(httpVerb, pathInfo, params, null, body, withOutStream);
+    }
+
+    protected void run(String httpVerb, String pathInfo, Map<String, String> params, Map<String, String> headers,
+            String body, boolean withOutStream) throws Exception {
+
         // Prepare mock request
         mockRequest = mock(HttpServletRequest.class);
         when(mockRequest.getMethod()).thenReturn(httpVerb);
@@ -67,6 +76,18 @@ public class MockedServlet {
                 when(mockRequest.getParameter(k)).thenReturn(v);
             });
         }
+        if (headers != null) {
+            headers.forEach((k, v) -> {
+                when(mockRequest.getHeader(k)).thenReturn(v);
+                // Like the container, HTTP dates are also available as dates
+                try {
+                    long date = ZonedDateTime.parse(v, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                    when(mockRequest.getDateHeader(k)).thenReturn(date);
+                } catch (DateTimeParseException e) {
+                    // Not a date header
+                }
+            });
+        }
 
         if (body == null) {
             body = "";
@@ -19,6 +19,10 @@
 package nuxeo.fontoxml.test.utils;
 
 import java.io.File;
+import java.io.Serializable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.nuxeo.common.utils.FileUtils;
 import org.nuxeo.ecm.core.api.Blob;
@@ -27,7 +31,9 @@ import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
 import org.nuxeo.ecm.core.api.thumbnail.ThumbnailFactory;
 import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventBundle;
 import org.nuxeo.ecm.core.event.EventListener;
+import org.nuxeo.ecm.core.event.PostCommitEventListener;
 import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
 
 import com.nuxeo.fontoxml.servlet.Constants;
@@ -57,6 +63,29 @@ public class TestMockersAndFakers implements EventListener, ThumbnailFactory {
 
     }
 
+    /*
+     * ==================================================
+     * PostCommitEventListener: same event, declared async and post-commit
+     * ==================================================
+     */
+    public static volatile Serializable postCommitAutosave = null;
+
+    public static volatile Serializable postCommitDigest = null;
+
+    public static class PostCommitListener implements PostCommitEventListener {
+
+        @Override
+        public void handleEvent(EventBundle events) {
+
+            for (Event event : events) {
+                if (event.getName().equals(Constants.EVENT_DOC_MODIFIED_BY_FONTOWML)) {
+                    postCommitAutosave = event.getContext().getProperty(Constants.EVENT_CONTEXT_IS_AUTOSAVE);
+                    postCommitDigest = event.getContext().getProperty(Constants.EVENT_CONTEXT_DIGEST);
+                }
+            }
+        }
+    }
+
     /*
      * ==================================================
      * ThumbnailFactory: Asset preview
@@ -66,9 +95,32 @@ public class TestMockersAndFakers implements EventListener, ThumbnailFactory {
 
     public static final String THUMBNAIL_MIMETYPE = "image/png";
 
+    // Thumbnails asked (so, previews calculated)
+    public static final AtomicInteger thumbnailCalls = new AtomicInteger();
+
+    // When set, getThumbnail waits for it
+    public static volatile CountDownLatch thumbnailRelease = null;
+
+    // When set, getThumbnail throws it
+    public static volatile RuntimeException thumbnailFailure = null;
+
     @Override
     public Blob getThumbnail(DocumentModel doc, CoreSession session) {
 
+        thumbnailCalls.incrementAndGet();
+        CountDownLatch release = thumbnailRelease;
+        if (release != null) {
+            try {
+                release.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        RuntimeException failure = thumbnailFailure;
+        if (failure != null) {
+            throw failure;
+        }
+
         return computeThumbnail(doc, session);
     }
 
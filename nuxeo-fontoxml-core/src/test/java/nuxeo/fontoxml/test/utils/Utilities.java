@@ -99,6 +99,28 @@ public class Utilities {
         return Utilities.createTestDoc(session, withBlob, null);
     }
 
+    /*
+     * Sets (or removes, if thumbnail is null) the thumbnail of the document, the image its previews are calculated
+     * from. Waits for the async thumbnail listeners first, so they don't change it afterwards, and for the preview
+     * pregeneration it triggers.
+     */
+    public static DocumentModel setThumbnail(CoreSession session, DocumentModel doc, Blob thumbnail) {
+
+        waitForAsyncWorkAndStartTransaction(session);
+
+        doc = session.getDocument(doc.getRef());
+        if (thumbnail == null) {
+            doc.removeFacet("Thumbnail");
+        } else {
+            doc.addFacet("Thumbnail");
+            doc.setPropertyValue("thumb:thumbnail", (Serializable) thumbnail);
+        }
+        doc = session.saveDocument(doc);
+        waitForAsyncWorkAndStartTransaction(session);
+
+        return doc;
+    }
+
     public static void waitForAsyncWorkAndStartTransaction(CoreSession session) {
 
         session.save();